@@ -0,0 +1,175 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+
+import org.scijava.Context;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import net.imagej.ops.OpService;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.algorithm.features.FeatureGroup;
+import net.imglib2.algorithm.features.Features;
+import net.imglib2.algorithm.features.GlobalSettings;
+import net.imglib2.algorithm.features.GroupedFeatures;
+import net.imglib2.algorithm.features.SingleFeatures;
+import net.imglib2.algorithm.features.classification.Classifier;
+import net.imglib2.algorithm.features.classification.Trainer;
+import net.imglib2.algorithm.features.ops.FeatureOp;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+
+/**
+ * Synthetic images, labelings, feature groups and models for the benchmarks.
+ * Everything is generated from fixed seeds, so all runs measure the same
+ * work.
+ */
+final class BenchmarkData {
+
+	static final List<String> CLASS_NAMES = Arrays.asList("background", "foreground");
+
+	private static final int BLOBS = 20;
+
+	private static OpService ops;
+
+	private BenchmarkData() {
+	}
+
+	/**
+	 * A headless op service, created once per JVM.
+	 */
+	static synchronized OpService ops() {
+		if (ops == null)
+			ops = new Context(OpService.class).service(OpService.class);
+		return ops;
+	}
+
+	/**
+	 * Parses a shape like {@code 512x512} or {@code 128x128x32}.
+	 */
+	static long[] shape(final String shape) {
+		final String[] parts = shape.split("x");
+		final long[] dimensions = new long[parts.length];
+		for (int d = 0; d < parts.length; d++)
+			dimensions[d] = Long.parseLong(parts[d].trim());
+		return dimensions;
+	}
+
+	/**
+	 * Bright Gaussian blobs on a dark background, with noise.
+	 */
+	static Img<FloatType> image(final long[] dimensions) {
+		final Random random = new Random(42);
+		final int n = dimensions.length;
+		final double[][] centers = new double[BLOBS][n];
+		final double[] radii = new double[BLOBS];
+		for (int b = 0; b < BLOBS; b++) {
+			for (int d = 0; d < n; d++)
+				centers[b][d] = random.nextDouble() * dimensions[d];
+			radii[b] = 4 + random.nextDouble() * dimensions[0] / 16;
+		}
+		final Img<FloatType> image = ArrayImgs.floats(dimensions);
+		final Cursor<FloatType> cursor = image.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			double value = 0;
+			for (int b = 0; b < BLOBS; b++) {
+				double distance = 0;
+				for (int d = 0; d < n; d++) {
+					final double delta = cursor.getDoublePosition(d) - centers[b][d];
+					distance += delta * delta;
+				}
+				value += Math.exp(-distance / (2 * radii[b] * radii[b]));
+			}
+			cursor.get().setReal(100 * value + 10 * random.nextGaussian());
+		}
+		return image;
+	}
+
+	/**
+	 * Labels the pixels on every k-th line along the second dimension, similar
+	 * to scribbles, as foreground where the image is bright and as background
+	 * elsewhere.
+	 *
+	 * @param fraction the fraction of labeled pixels
+	 */
+	static ImgLabeling<String, IntType> labeling(final Img<FloatType> image, final double fraction) {
+		final long period = Math.max(1, Math.round(1 / fraction));
+		final ImgLabeling<String, IntType> labeling = new ImgLabeling<>(
+				ArrayImgs.ints(Intervals.dimensionsAsLongArray(image)));
+		final Cursor<FloatType> pixels = image.localizingCursor();
+		final RandomAccess<LabelingType<String>> labels = labeling.randomAccess();
+		while (pixels.hasNext()) {
+			pixels.fwd();
+			if (pixels.getLongPosition(1) % period != 0)
+				continue;
+			labels.setPosition(pixels);
+			labels.get().add(pixels.get().getRealDouble() > 50 ? CLASS_NAMES.get(1) : CLASS_NAMES.get(0));
+		}
+		return labeling;
+	}
+
+	/**
+	 * Resolves a feature family by the name of a method without parameters
+	 * of {@link GroupedFeatures} or {@link SingleFeatures}, such as
+	 * {@code gauss} or {@code identity}.
+	 */
+	static FeatureOp feature(final String family) {
+		final GlobalSettings settings = GlobalSettings.defaultSettings();
+		final Object[] factories = { new GroupedFeatures(ops(), settings), new SingleFeatures(ops(), settings) };
+		final TreeSet<String> available = new TreeSet<>();
+		for (final Object factory : factories)
+			for (final Method method : factory.getClass().getMethods())
+				if (method.getParameterCount() == 0 && FeatureOp.class.isAssignableFrom(method.getReturnType())) {
+					if (method.getName().equals(family))
+						try {
+							return (FeatureOp) method.invoke(factory);
+						} catch (final ReflectiveOperationException e) {
+							throw new IllegalStateException(e);
+						}
+					available.add(method.getName());
+				}
+		throw new IllegalArgumentException("Unknown feature family " + family + ", available: " + available);
+	}
+
+	/**
+	 * @param families comma separated names, see {@link #feature}
+	 */
+	static FeatureGroup features(final String families) {
+		final List<FeatureOp> features = new ArrayList<>();
+		for (final String family : families.split(","))
+			features.add(feature(family.trim()));
+		return Features.group(features.toArray(new FeatureOp[features.size()]));
+	}
+
+	static TrainingSamples samples(final FeatureGroup features, final Img<FloatType> image,
+			final ImgLabeling<String, IntType> labeling, final ExecutorService pool) throws Exception {
+		return new SampleExtractor(features, CLASS_NAMES, pool, false).extract(image, new LabelRegions<>(labeling));
+	}
+
+	static weka.classifiers.Classifier forest(final int threads) {
+		final weka.classifiers.Classifier forest = Trainer.initRandomForest();
+		if (forest instanceof FastRandomForest)
+			((FastRandomForest) forest).setNumThreads(threads);
+		return forest;
+	}
+
+	static Classifier train(final FeatureGroup features, final TrainingSamples samples, final int threads)
+			throws Exception {
+		final weka.classifiers.Classifier forest = forest(threads);
+		forest.buildClassifier(samples.toInstances(StackClassifier.header(features.attributeLabels(), CLASS_NAMES)));
+		return new Classifier(ops(), CLASS_NAMES, features, forest);
+	}
+}
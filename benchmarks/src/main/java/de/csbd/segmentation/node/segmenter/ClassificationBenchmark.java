@@ -0,0 +1,114 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imglib2.algorithm.features.FeatureGroup;
+import net.imglib2.algorithm.features.classification.Classifier;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Classifies the pixels of a precomputed feature stack, which isolates the
+ * per pixel cost of the random forest, and segments whole images as the
+ * segmenter node does. Divide the image size by the average time to get the
+ * throughput in pixels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ClassificationBenchmark {
+
+	@Param({ "512x512", "128x128x32" })
+	public String shape;
+
+	@Param({ "gauss,hessian,differenceOfGaussians" })
+	public String families;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	@Param({ "false", "true" })
+	public boolean probabilities;
+
+	/**
+	 * Only used by {@link #classifyPixels}: the {@link ForestEngine} or the
+	 * Weka classifier.
+	 */
+	@Param({ "flat", "weka" })
+	public String engine;
+
+	/** Only used by {@link #segment}, zero segments the image at once. */
+	@Param({ "0", "128" })
+	public int tileSize;
+
+	private Classifier classifier;
+
+	private StackClassifier stackClassifier;
+
+	private Img<FloatType> image;
+
+	private FeatureStack stack;
+
+	private Img<ByteType> labels;
+
+	private Img<FloatType> probabilityImage;
+
+	private ForkJoinPool pool;
+
+	@Setup
+	public void setup() throws Exception {
+		final FeatureGroup features = BenchmarkData.features(families);
+		final long[] dimensions = BenchmarkData.shape(shape);
+		image = BenchmarkData.image(dimensions);
+		pool = new ForkJoinPool(threads);
+		classifier = BenchmarkData.train(features,
+				BenchmarkData.samples(features, image, BenchmarkData.labeling(image, 0.05), pool), threads);
+		stackClassifier = new StackClassifier(classifier, engine.equals("flat"));
+		stack = FeatureStack.compute(features, FeatureStack.source(image), image, pool);
+		labels = ArrayImgs.bytes(dimensions);
+		final long[] channels = new long[dimensions.length + 1];
+		System.arraycopy(dimensions, 0, channels, 0, dimensions.length);
+		channels[dimensions.length] = BenchmarkData.CLASS_NAMES.size();
+		probabilityImage = ArrayImgs.floats(channels);
+	}
+
+	@TearDown
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	@Benchmark
+	public Img<ByteType> classifyPixels() throws Exception {
+		if (probabilities)
+			stackClassifier.classify(stack, labels, probabilityImage, ProbabilityPrecision.FLOAT, null, pool);
+		else
+			stackClassifier.classify(stack, labels, pool);
+		return labels;
+	}
+
+	@Benchmark
+	public TiledSegmenter.Segmentation segment() throws Exception {
+		final TiledSegmenter segmenter = new TiledSegmenter(classifier, tileSize,
+				probabilities ? ProbabilityPrecision.FLOAT : null, 0, pool);
+		return segmenter.segment(image);
+	}
+}
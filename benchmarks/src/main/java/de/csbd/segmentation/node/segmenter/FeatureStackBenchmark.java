@@ -0,0 +1,72 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imglib2.RandomAccessible;
+import net.imglib2.algorithm.features.FeatureGroup;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Computes the features of a whole image, one feature family at a time.
+ * Further families can be measured with {@code -p family=...}, see
+ * {@link BenchmarkData#feature}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FeatureStackBenchmark {
+
+	@Param({ "identity", "gauss", "gradient", "differenceOfGaussians", "hessian", "min", "max", "mean", "median",
+			"variance" })
+	public String family;
+
+	@Param({ "512x512", "128x128x32" })
+	public String shape;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	private FeatureGroup features;
+
+	private Img<FloatType> image;
+
+	private RandomAccessible<FloatType> source;
+
+	private ForkJoinPool pool;
+
+	@Setup
+	public void setup() {
+		features = BenchmarkData.features(family);
+		image = BenchmarkData.image(BenchmarkData.shape(shape));
+		source = FeatureStack.source(image);
+		pool = new ForkJoinPool(threads);
+	}
+
+	@TearDown
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	@Benchmark
+	public FeatureStack computeFeatures() throws Exception {
+		return FeatureStack.compute(features, source, image, pool);
+	}
+}
@@ -0,0 +1,128 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.imglib2.algorithm.features.FeatureGroup;
+import net.imglib2.algorithm.features.classification.Classifier;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Saves and loads a model the way {@link WekaSegmenterPortObject} does: the
+ * training samples and the classifier as two entries of a zip stream, the
+ * classifier either serialized by {@link Classifier#store} or in the
+ * {@link ClassifierFormat}. The
+ * port object itself needs a KNIME installation, so its content is written to
+ * a plain {@link ZipOutputStream} instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ModelPersistenceBenchmark {
+
+	@Param({ "512x512" })
+	public String shape;
+
+	@Param({ "gauss,hessian,differenceOfGaussians" })
+	public String families;
+
+	/** Fraction of the pixels that are labeled, which sets the sample count. */
+	@Param({ "0.05", "0.5" })
+	public double labeled;
+
+	@Param({ "none", "uncompressed", "compressed" })
+	public String trainingSamples;
+
+	@Param({ "serialized", "flat", "flat compressed" })
+	public String classifierFormat;
+
+	private Classifier classifier;
+
+	private TrainingData trainingData;
+
+	private byte[] saved;
+
+	@Setup
+	public void setup() throws Exception {
+		final FeatureGroup features = BenchmarkData.features(families);
+		final Img<FloatType> image = BenchmarkData.image(BenchmarkData.shape(shape));
+		final ForkJoinPool pool = new ForkJoinPool();
+		try {
+			final TrainingSamples samples = BenchmarkData.samples(features, image,
+					BenchmarkData.labeling(image, labeled), pool);
+			classifier = BenchmarkData.train(features, samples, pool.getParallelism());
+			if (!trainingSamples.equals("none")) {
+				trainingData = new TrainingData(FeatureStackCache.featuresId(features), BenchmarkData.CLASS_NAMES,
+						features.count(), trainingSamples.equals("compressed"));
+				trainingData.put("row", samples);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		saved = save();
+	}
+
+	@Benchmark
+	public byte[] save() throws Exception {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ZipOutputStream out = new ZipOutputStream(bytes);
+		if (trainingData != null) {
+			out.putNextEntry(new ZipEntry("TrainingData"));
+			final DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out));
+			trainingData.write(dataOut);
+			dataOut.flush();
+			out.closeEntry();
+		}
+		if (classifierFormat.equals("serialized")) {
+			out.putNextEntry(new ZipEntry("Classifier"));
+			classifier.store(out);
+		} else {
+			out.putNextEntry(new ZipEntry("Forest"));
+			final DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out));
+			ClassifierFormat.write(dataOut, classifier, ClassifierFormat.forest(classifier),
+					classifierFormat.equals("flat compressed"));
+			dataOut.flush();
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	@Benchmark
+	public Classifier load(final Blackhole blackhole) throws Exception {
+		final ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(saved));
+		ZipEntry entry = in.getNextEntry();
+		if (entry.getName().equals("TrainingData")) {
+			blackhole.consume(TrainingData.read(new DataInputStream(new BufferedInputStream(in))));
+			entry = in.getNextEntry();
+		}
+		if (entry.getName().equals("Forest"))
+			return ClassifierFormat.read(new DataInputStream(new BufferedInputStream(in)), BenchmarkData.ops());
+		return Classifier.load(BenchmarkData.ops(), in);
+	}
+}
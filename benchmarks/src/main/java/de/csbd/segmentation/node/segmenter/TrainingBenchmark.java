@@ -0,0 +1,102 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import net.imglib2.algorithm.features.FeatureGroup;
+import net.imglib2.img.Img;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+import weka.core.Instances;
+
+/**
+ * The two stages of the trainer node on a synthetic labeled image: extracting
+ * the feature vectors of the labeled pixels and training the random forest,
+ * either by Weka or by the {@link ForestTrainer}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TrainingBenchmark {
+
+	@Param({ "512x512", "128x128x32" })
+	public String shape;
+
+	@Param({ "gauss,hessian,differenceOfGaussians" })
+	public String families;
+
+	/** Fraction of the pixels that are labeled. */
+	@Param({ "0.05" })
+	public double labeled;
+
+	@Param({ "false", "true" })
+	public boolean sparse;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	private FeatureGroup features;
+
+	private Img<FloatType> image;
+
+	private LabelRegions<String> labeling;
+
+	private TrainingSamples samples;
+
+	private Instances instances;
+
+	private ForkJoinPool pool;
+
+	@Setup
+	public void setup() throws Exception {
+		features = BenchmarkData.features(families);
+		image = BenchmarkData.image(BenchmarkData.shape(shape));
+		final ImgLabeling<String, IntType> labels = BenchmarkData.labeling(image, labeled);
+		labeling = new LabelRegions<>(labels);
+		pool = new ForkJoinPool(threads);
+		samples = BenchmarkData.samples(features, image, labels, pool);
+		instances = samples.toInstances(StackClassifier.header(features.attributeLabels(), BenchmarkData.CLASS_NAMES));
+	}
+
+	@TearDown
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	@Benchmark
+	public TrainingSamples extractSamples() throws Exception {
+		return new SampleExtractor(features, BenchmarkData.CLASS_NAMES, pool, sparse).extract(image, labeling);
+	}
+
+	@Benchmark
+	public weka.classifiers.Classifier trainForest() throws Exception {
+		final weka.classifiers.Classifier forest = BenchmarkData.forest(threads);
+		forest.buildClassifier(instances);
+		return forest;
+	}
+
+	@Benchmark
+	public FlatForest trainColumnarForest() throws Exception {
+		final FastRandomForest forest = (FastRandomForest) BenchmarkData.forest(threads);
+		return ForestTrainer.like(forest).train(samples, BenchmarkData.CLASS_NAMES.size(), pool);
+	}
+}
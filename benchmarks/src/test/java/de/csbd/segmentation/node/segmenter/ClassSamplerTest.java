@@ -0,0 +1,120 @@
+package de.csbd.segmentation.node.segmenter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import net.imglib2.Point;
+
+public class ClassSamplerTest {
+
+	private static final int PIXELS = 1000;
+
+	@Test
+	public void testReservoirKeepsTheLimitInStreamOrder() {
+		final ClassSampler sampler = new ClassSampler(100, 0, 1, 1);
+		final long[] kept = reservoir(sampler, 0, 4, PIXELS);
+		assertEquals(25, kept.length);
+		for (int i = 1; i < kept.length; i++)
+			assertTrue("stream order", kept[i - 1] < kept[i]);
+	}
+
+	@Test
+	public void testReservoirKeepsSmallClassesCompletely() {
+		final ClassSampler sampler = new ClassSampler(100, 0, 1, 1);
+		assertArrayEquals(new long[] { 0, 1, 2, 3, 4 }, reservoir(sampler, 0, 4, 5));
+	}
+
+	@Test
+	public void testReservoirDependsOnSeedAndClassOnly() {
+		final ClassSampler sampler = new ClassSampler(100, 0, 1, 1);
+		assertArrayEquals(reservoir(sampler, 0, 4, PIXELS), reservoir(sampler, 0, 4, PIXELS));
+		assertArrayEquals(reservoir(sampler, 0, 4, PIXELS),
+				reservoir(new ClassSampler(100, 0, 1, 1), 0, 4, PIXELS));
+		assertFalse(Arrays.equals(reservoir(sampler, 0, 4, PIXELS), reservoir(sampler, 1, 4, PIXELS)));
+	}
+
+	@Test
+	public void testMemoryLimitPerClass() {
+		// 1023 features and a label take 4 KB per sample, 256 samples per MB.
+		assertEquals(128, new ClassSampler(0, 1, 1023, 1).maxPerClass(2));
+		assertEquals(50, new ClassSampler(100, 1, 1023, 1).maxPerClass(2));
+		assertEquals(0, ClassSampler.unlimited().maxPerClass(2));
+	}
+
+	/**
+	 * The budget is split evenly between all classes of all rows, a small
+	 * class keeps all its samples, and the samples stay in the order they
+	 * were added.
+	 */
+	@Test
+	public void testSampleReservoirsCapEachClass() {
+		final ClassSampler sampler = new ClassSampler(300, 0, 2, 7);
+		final TrainingSamples samples = addRows(sampler);
+		final int[] counts = new int[4];
+		for (int i = 0; i < samples.size(); i++) {
+			counts[samples.label(i)]++;
+			assertEquals("label", samples.label(i), (int) samples.get(i, 1));
+			if (i > 0)
+				assertTrue("row order", samples.get(i - 1, 0) < samples.get(i, 0));
+		}
+		assertArrayEquals(new int[] { 75, 75, 75, 2 }, counts);
+		SampleExtractorTest.assertSameSamples(samples, addRows(sampler));
+	}
+
+	@Test
+	public void testUnlimitedReservoirsKeepAllSamples() {
+		final TrainingSamples samples = addRows(new ClassSampler(0, 0, 2, 7));
+		assertEquals(7010, samples.size());
+		for (int i = 1; i < samples.size(); i++)
+			assertTrue("row order", samples.get(i - 1, 0) < samples.get(i, 0));
+	}
+
+	/**
+	 * Rows with one, two and three classes, then a short row that adds a
+	 * fourth class with two samples.
+	 */
+	private static TrainingSamples addRows(final ClassSampler sampler) {
+		final ClassSampler.SampleReservoirs reservoirs = sampler.reservoirs();
+		reservoirs.add(row(1000, 1, 0));
+		reservoirs.add(row(1000, 2, 1000));
+		reservoirs.add(row(5000, 3, 2000));
+		reservoirs.add(row(10, 4, 7000));
+		return reservoirs.samples();
+	}
+
+	/**
+	 * Samples whose first feature is their index among all rows and whose
+	 * second feature is their label.
+	 */
+	private static TrainingSamples row(final int count, final int classes, final int first) {
+		final TrainingSamples samples = new TrainingSamples(2);
+		for (int i = 0; i < count; i++)
+			samples.add(new float[] { first + i, i % classes }, i % classes);
+		return samples;
+	}
+
+	/**
+	 * Streams pixels at positions 0, 1, 2, ... through a reservoir and returns
+	 * the positions kept.
+	 */
+	private static long[] reservoir(final ClassSampler sampler, final int classIndex, final int classCount,
+			final int pixels) {
+		final ClassSampler.Reservoir reservoir = sampler.reservoir(classIndex, classCount, 1);
+		for (int i = 0; i < pixels; i++)
+			reservoir.offer(new Point(new long[] { i }));
+		reservoir.sort();
+		final long[] kept = new long[reservoir.size()];
+		final Point position = new Point(1);
+		for (int i = 0; i < kept.length; i++) {
+			reservoir.localize(i, position);
+			kept[i] = position.getLongPosition(0);
+		}
+		return kept;
+	}
+}
@@ -0,0 +1,100 @@
+package de.csbd.segmentation.node.segmenter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import net.imglib2.algorithm.features.FeatureGroup;
+import net.imglib2.algorithm.features.classification.Classifier;
+import net.imglib2.algorithm.features.gson.FeaturesGson;
+
+public class ClassifierFormatTest {
+
+	private static final double DELTA = 1e-12;
+
+	private static final double MISSING_DELTA = 1e-6;
+
+	private FeatureGroup features;
+
+	private FastRandomForest forest;
+
+	private Classifier classifier;
+
+	private TrainingSamples queries;
+
+	@Before
+	public void setUp() throws Exception {
+		features = BenchmarkData.features("gauss");
+		forest = TestForests.train(TestForests.samples(features.count(), 2000, 1));
+		classifier = new Classifier(BenchmarkData.ops(), TestForests.CLASS_NAMES, features, forest);
+		queries = TestForests.samples(features.count(), 300, 2);
+	}
+
+	@Test
+	public void testRandomForestIsWrittenFlat() {
+		assertNotNull(ClassifierFormat.forest(classifier));
+	}
+
+	@Test
+	public void testOtherClassifiersAreNotWrittenFlat() {
+		assertNull(ClassifierFormat.forest(new Classifier(BenchmarkData.ops(), TestForests.CLASS_NAMES, features,
+				new weka.classifiers.trees.J48())));
+	}
+
+	@Test
+	public void testClassifierIsReadBack() throws Exception {
+		for (final boolean compress : new boolean[] { false, true }) {
+			final byte[] bytes = write(compress);
+			assertSameClassifier(
+					ClassifierFormat.read(new DataInputStream(new ByteArrayInputStream(bytes)), BenchmarkData.ops()));
+		}
+	}
+
+	@Test
+	public void testClassifierIsMappedFromFile() throws Exception {
+		for (final boolean compress : new boolean[] { false, true }) {
+			final File file = File.createTempFile("classifier", ".bin");
+			try {
+				Files.write(file.toPath(), write(compress));
+				assertSameClassifier(ClassifierFormat.map(file, BenchmarkData.ops()));
+			} finally {
+				file.delete();
+			}
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnknownVersionIsRejected() throws Exception {
+		final byte[] bytes = write(false);
+		bytes[3] = 99;
+		ClassifierFormat.read(new DataInputStream(new ByteArrayInputStream(bytes)), BenchmarkData.ops());
+	}
+
+	private byte[] write(final boolean compress) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ClassifierFormat.write(new DataOutputStream(bytes), classifier, ClassifierFormat.forest(classifier), compress);
+		return bytes.toByteArray();
+	}
+
+	private void assertSameClassifier(final Classifier read) throws Exception {
+		assertEquals(TestForests.CLASS_NAMES, read.classNames());
+		assertEquals(FeaturesGson.toJson(features), FeaturesGson.toJson(read.features()));
+		for (int i = 0; i < queries.size(); i++)
+			assertArrayEquals("sample " + i, forest.distributionForInstance(TestForests.instance(queries, i)),
+					read.getClassifier().distributionForInstance(TestForests.instance(queries, i)),
+					TestForests.hasMissingValue(queries, i) ? MISSING_DELTA : DELTA);
+	}
+}
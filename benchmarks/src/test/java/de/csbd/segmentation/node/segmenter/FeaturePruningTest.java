@@ -0,0 +1,124 @@
+package de.csbd.segmentation.node.segmenter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.algorithm.features.FeatureGroup;
+import net.imglib2.algorithm.features.ops.FeatureOp;
+
+public class FeaturePruningTest {
+
+	private FeatureGroup features;
+
+	private TrainingSamples samples;
+
+	private FlatForest forest;
+
+	private ExecutorService pool;
+
+	@Before
+	public void setUp() throws Exception {
+		features = BenchmarkData.features("identity,gauss");
+		samples = samples(features.count(), 2000, 1);
+		pool = new ForkJoinPool(2);
+		forest = new ForestTrainer(10, 0, 0, 1).train(samples, BenchmarkData.CLASS_NAMES.size(), pool);
+	}
+
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	@Test
+	public void testInformativeFeatureIsMostImportant() {
+		final double[] importance = FeaturePruning.importance(forest, features.count());
+		assertEquals(features.count(), importance.length);
+		for (int f = 1; f < importance.length; f++)
+			assertTrue("feature " + f, importance[0] > importance[f]);
+	}
+
+	/**
+	 * The op of the informative feature is kept even if it has more feature
+	 * images than allowed, and its samples are the columns of the full ones.
+	 */
+	@Test
+	public void testSelectKeepsTheMostImportantOp() {
+		final FeaturePruning pruning = FeaturePruning.select(features, forest, 1);
+		final FeatureOp first = features.features().get(0);
+		assertTrue(pruning.prunes());
+		assertEquals(1, pruning.prunedFeatures().features().size());
+		assertSame(first, pruning.prunedFeatures().features().get(0));
+		assertEquals(first.count(), pruning.prunedCount());
+		final TrainingSamples pruned = pruning.prune(samples);
+		assertEquals(first.count(), pruned.featureCount());
+		assertEquals(samples.size(), pruned.size());
+		for (int i = 0; i < samples.size(); i++) {
+			assertEquals(samples.label(i), pruned.label(i));
+			for (int f = 0; f < pruned.featureCount(); f++)
+				assertEquals(samples.get(i, f), pruned.get(i, f), 0);
+		}
+	}
+
+	/**
+	 * Every sample ends up in exactly one set, in the original order, and
+	 * the split only depends on the seed.
+	 */
+	@Test
+	public void testSplit() {
+		final TrainingSamples[] split = FeaturePruning.split(samples, 0.25, 3);
+		assertEquals(samples.size(), split[0].size() + split[1].size());
+		assertEquals(0.25, (double) split[1].size() / samples.size(), 0.05);
+		int training = 0;
+		int validation = 0;
+		for (int i = 0; i < samples.size(); i++)
+			if (training < split[0].size() && samples.get(i, 1) == split[0].get(training, 1))
+				training++;
+			else if (validation < split[1].size() && samples.get(i, 1) == split[1].get(validation, 1))
+				validation++;
+		assertEquals(split[0].size(), training);
+		assertEquals(split[1].size(), validation);
+		final TrainingSamples[] again = FeaturePruning.split(samples, 0.25, 3);
+		SampleExtractorTest.assertSameSamples(split[0], again[0]);
+		SampleExtractorTest.assertSameSamples(split[1], again[1]);
+		assertFalse(Arrays.equals(column(split[1], 1), column(FeaturePruning.split(samples, 0.25, 4)[1], 1)));
+	}
+
+	@Test
+	public void testAccuracy() {
+		assertTrue(Double.isNaN(FeaturePruning.accuracy(forest, new TrainingSamples(features.count()))));
+		assertTrue(FeaturePruning.accuracy(forest, samples(features.count(), 1000, 2)) > 0.95);
+	}
+
+	/**
+	 * Random samples whose class only depends on the first feature.
+	 */
+	private static TrainingSamples samples(final int featureCount, final int count, final long seed) {
+		final Random random = new Random(seed);
+		final TrainingSamples samples = new TrainingSamples(featureCount);
+		final float[] features = new float[featureCount];
+		for (int i = 0; i < count; i++) {
+			for (int f = 0; f < featureCount; f++)
+				features[f] = random.nextFloat();
+			samples.add(features, features[0] < 0.5f ? 0 : 1);
+		}
+		return samples;
+	}
+
+	private static float[] column(final TrainingSamples samples, final int feature) {
+		final float[] column = new float[samples.size()];
+		for (int i = 0; i < column.length; i++)
+			column[i] = samples.get(i, feature);
+		return column;
+	}
+}
@@ -0,0 +1,145 @@
+package de.csbd.segmentation.node.segmenter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class FeatureStackCacheTest {
+
+	private static final int FEATURES = 3;
+
+	private static final Interval INTERVAL = new FinalInterval(32, 16);
+
+	/** The bytes of one stack. */
+	private static final long STACK = FEATURES * 32 * 16 * Float.BYTES;
+
+	private final AtomicInteger computed = new AtomicInteger();
+
+	@Test
+	public void testCachedStackIsReturned() throws Exception {
+		final FeatureStackCache cache = new FeatureStackCache(2 * STACK, 0);
+		final FeatureStack first = get(cache, null, 1, FeatureStorage.HEAP);
+		assertSame(first, get(cache, null, 1, FeatureStorage.HEAP));
+		assertEquals(1, computed.get());
+	}
+
+	@Test
+	public void testDisabledCacheComputesEveryTime() throws Exception {
+		final FeatureStackCache cache = new FeatureStackCache(0, 100 * STACK);
+		get(cache, null, 1, FeatureStorage.HEAP);
+		get(cache, null, 1, FeatureStorage.HEAP);
+		assertEquals(2, computed.get());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedStackIsEvicted() throws Exception {
+		final FeatureStackCache cache = new FeatureStackCache(2 * STACK, 0);
+		get(cache, null, 1, FeatureStorage.HEAP);
+		get(cache, null, 2, FeatureStorage.HEAP);
+		get(cache, null, 1, FeatureStorage.HEAP);
+		get(cache, null, 3, FeatureStorage.HEAP);
+		assertEquals(3, computed.get());
+		get(cache, null, 1, FeatureStorage.HEAP);
+		assertEquals(3, computed.get());
+		get(cache, null, 2, FeatureStorage.HEAP);
+		assertEquals(4, computed.get());
+	}
+
+	/**
+	 * Evicted stacks are spilled to disk and read back with their values
+	 * into the requested storage, instead of being computed again.
+	 */
+	@Test
+	public void testEvictedStackIsSpilledAndReadBack() throws Exception {
+		for (final FeatureStorage storage : FeatureStorage.values()) {
+			final FeatureStackCache cache = new FeatureStackCache(STACK, 10 * STACK);
+			computed.set(0);
+			final FeatureStack first = get(cache, null, 1, storage);
+			get(cache, null, 2, storage);
+			final FeatureStack restored = get(cache, null, 1, storage);
+			assertEquals(storage.toString(), 2, computed.get());
+			assertNotSame(first, restored);
+			assertValues(1, restored);
+		}
+	}
+
+	@Test
+	public void testStacksBeyondTheDiskLimitAreDropped() throws Exception {
+		final FeatureStackCache cache = new FeatureStackCache(STACK, STACK);
+		get(cache, null, 1, FeatureStorage.HEAP);
+		get(cache, null, 2, FeatureStorage.HEAP);
+		get(cache, null, 3, FeatureStorage.HEAP);
+		assertEquals(3, computed.get());
+		assertValues(2, get(cache, null, 2, FeatureStorage.HEAP));
+		assertEquals(3, computed.get());
+		assertValues(1, get(cache, null, 1, FeatureStorage.HEAP));
+		assertEquals(4, computed.get());
+	}
+
+	/**
+	 * Releasing an owner drops the stacks only it used, in memory and on
+	 * disk, and keeps the stacks of other owners.
+	 */
+	@Test
+	public void testReleaseDropsOnlyTheOwnersStacks() throws Exception {
+		final FeatureStackCache cache = new FeatureStackCache(2 * STACK, 10 * STACK);
+		final Object first = new Object();
+		final Object second = new Object();
+		get(cache, first, 1, FeatureStorage.HEAP);
+		get(cache, first, 2, FeatureStorage.HEAP);
+		get(cache, second, 2, FeatureStorage.HEAP);
+		get(cache, second, 3, FeatureStorage.HEAP);
+		assertEquals(3, computed.get());
+		cache.release(first);
+		get(cache, second, 2, FeatureStorage.HEAP);
+		get(cache, second, 3, FeatureStorage.HEAP);
+		assertEquals(3, computed.get());
+		get(cache, second, 1, FeatureStorage.HEAP);
+		assertEquals(4, computed.get());
+	}
+
+	private FeatureStack get(final FeatureStackCache cache, final Object owner, final int image,
+			final FeatureStorage storage) throws Exception {
+		return cache.get(owner, "image " + image, "features", INTERVAL, storage, () -> {
+			computed.incrementAndGet();
+			return stack(image);
+		});
+	}
+
+	/**
+	 * A stack whose feature f of the given image is {@code image * 100 + f}
+	 * at every pixel.
+	 */
+	private static FeatureStack stack(final int image) {
+		final List<RandomAccessibleInterval<FloatType>> features = new ArrayList<>();
+		for (int f = 0; f < FEATURES; f++) {
+			final Img<FloatType> feature = ArrayImgs.floats(Intervals.dimensionsAsLongArray(INTERVAL));
+			for (final FloatType value : feature)
+				value.set(image * 100 + f);
+			features.add(feature);
+		}
+		return new FeatureStack(INTERVAL, features);
+	}
+
+	private static void assertValues(final int image, final FeatureStack stack) {
+		assertEquals(FEATURES, stack.count());
+		for (int f = 0; f < FEATURES; f++)
+			for (final FloatType value : Views.flatIterable(stack.get(f)))
+				assertEquals("feature " + f, image * 100 + f, value.get(), 0);
+	}
+}
@@ -0,0 +1,118 @@
+package de.csbd.segmentation.node.segmenter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+
+public class FlatForestTest {
+
+	private static final int FEATURES = 4;
+
+	private static final double DELTA = 1e-12;
+
+	/**
+	 * The flat forest weights the children of a missing value with float
+	 * fractions, Weka with doubles.
+	 */
+	private static final double MISSING_DELTA = 1e-6;
+
+	private FastRandomForest forest;
+
+	private TrainingSamples queries;
+
+	@Before
+	public void setUp() throws Exception {
+		forest = TestForests.train(TestForests.samples(FEATURES, 2000, 1));
+		queries = TestForests.samples(FEATURES, 500, 2);
+	}
+
+	@Test
+	public void testConvertedForestClassifiesLikeFastRandomForest() throws Exception {
+		final FlatForest flat = FlatForest.of(forest);
+		assertNotNull(flat);
+		assertEquals(TestForests.CLASS_NAMES.size(), flat.classCount());
+		assertEquals(10, flat.treeCount());
+		assertClassifiesLikeForest(flat);
+	}
+
+	@Test
+	public void testEngineClassifiesLikeFastRandomForest() throws Exception {
+		final ForestEngine engine = FlatForest.of(forest).engine();
+		final int classCount = engine.classCount();
+		final float[][] features = new float[FEATURES][queries.size()];
+		for (int i = 0; i < queries.size(); i++)
+			for (int f = 0; f < FEATURES; f++)
+				features[f][i] = queries.get(i, f);
+		final double[] distributions = new double[queries.size() * classCount];
+		engine.distributions(features, queries.size(), distributions);
+		for (int i = 0; i < queries.size(); i++) {
+			final double[] expected = forest.distributionForInstance(TestForests.instance(queries, i));
+			final double[] actual = new double[classCount];
+			System.arraycopy(distributions, i * classCount, actual, 0, classCount);
+			assertArrayEquals("sample " + i, expected, actual, delta(i));
+		}
+	}
+
+	@Test
+	public void testWrittenForestIsReadBack() throws Exception {
+		for (final boolean compress : new boolean[] { false, true }) {
+			final byte[] bytes = write(FlatForest.of(forest), compress);
+			assertClassifiesLikeForest(FlatForest.read(new DataInputStream(new ByteArrayInputStream(bytes))));
+			assertClassifiesLikeForest(FlatForest.read(ByteBuffer.wrap(bytes)));
+		}
+	}
+
+	/**
+	 * A forest in a read-only direct buffer, like a memory-mapped file, is
+	 * used in place.
+	 */
+	@Test
+	public void testForestIsReadFromDirectBuffer() throws Exception {
+		final byte[] bytes = write(FlatForest.of(forest), false);
+		final ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 8);
+		direct.putLong(42);
+		direct.put(bytes);
+		direct.position(Long.BYTES);
+		final ByteBuffer readOnly = direct.asReadOnlyBuffer();
+		final FlatForest flat = FlatForest.read(readOnly);
+		assertEquals(direct.capacity(), readOnly.position());
+		assertClassifiesLikeForest(flat);
+		assertClassifiesLikeForest(FlatForest.read(new DataInputStream(new ByteArrayInputStream(write(flat, true)))));
+	}
+
+	@Test(expected = IOException.class)
+	public void testCorruptForestIsRejected() throws Exception {
+		final byte[] bytes = write(FlatForest.of(forest), false);
+		// The first root of the trees follows the header of 21 bytes.
+		ByteBuffer.wrap(bytes, 21, Integer.BYTES).putInt(Integer.MAX_VALUE);
+		FlatForest.read(ByteBuffer.wrap(bytes));
+	}
+
+	private void assertClassifiesLikeForest(final FlatForest flat) throws Exception {
+		for (int i = 0; i < queries.size(); i++)
+			assertArrayEquals("sample " + i, forest.distributionForInstance(TestForests.instance(queries, i)),
+					flat.distributionForInstance(TestForests.instance(queries, i)), delta(i));
+	}
+
+	private double delta(final int sample) {
+		return TestForests.hasMissingValue(queries, sample) ? MISSING_DELTA : DELTA;
+	}
+
+	private static byte[] write(final FlatForest forest, final boolean compress) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		forest.write(new DataOutputStream(bytes), compress);
+		return bytes.toByteArray();
+	}
+}
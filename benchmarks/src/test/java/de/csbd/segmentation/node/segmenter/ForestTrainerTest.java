@@ -0,0 +1,108 @@
+package de.csbd.segmentation.node.segmenter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ForestTrainerTest {
+
+	private static final int FEATURES = 6;
+
+	private TrainingSamples samples;
+
+	private ExecutorService pool;
+
+	@Before
+	public void setUp() {
+		samples = TestForests.samples(FEATURES, 2000, 1);
+		pool = new ForkJoinPool(2);
+	}
+
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	@Test
+	public void testForestHasTheConfiguredTrees() throws Exception {
+		final FlatForest forest = new ForestTrainer(7, 0, 0, 1).train(samples, TestForests.CLASS_NAMES.size(), pool);
+		assertEquals(7, forest.treeCount());
+		assertEquals(TestForests.CLASS_NAMES.size(), forest.classCount());
+	}
+
+	/**
+	 * On samples whose class is a range of the first feature, the forest is
+	 * about as accurate as the one Weka trains.
+	 */
+	@Test
+	public void testForestIsAsAccurateAsFastRandomForest() throws Exception {
+		final TrainingSamples training = separable(2000, 3);
+		final TrainingSamples validation = separable(1000, 4);
+		final double accuracy = FeaturePruning.accuracy(
+				new ForestTrainer(10, 0, 0, 1).train(training, TestForests.CLASS_NAMES.size(), pool), validation);
+		final double wekaAccuracy = FeaturePruning.accuracy(FlatForest.of(TestForests.train(training)), validation);
+		assertTrue("accuracy " + accuracy, accuracy > 0.95);
+		assertEquals(wekaAccuracy, accuracy, 0.02);
+	}
+
+	@Test
+	public void testForestOnlyDependsOnTheSeed() throws Exception {
+		final int classCount = TestForests.CLASS_NAMES.size();
+		final byte[] forest = bytes(new ForestTrainer(10, 0, 0, 1).train(samples, classCount, pool));
+		final ExecutorService serial = new ForkJoinPool(1);
+		try {
+			assertArrayEquals(forest, bytes(new ForestTrainer(10, 0, 0, 1).train(samples, classCount, serial)));
+		} finally {
+			serial.shutdownNow();
+		}
+		assertFalse(Arrays.equals(forest, bytes(new ForestTrainer(10, 0, 0, 2).train(samples, classCount, pool))));
+	}
+
+	@Test
+	public void testMaxDepthLimitsTheTrees() throws Exception {
+		final FlatForest forest = new ForestTrainer(5, 0, 3, 1).train(samples, TestForests.CLASS_NAMES.size(), pool);
+		for (int t = 0; t < forest.treeCount(); t++)
+			assertTrue("depth of tree " + t, depth(forest, forest.root(t)) <= 3);
+	}
+
+	/**
+	 * Random samples whose class is the third of the range of the first
+	 * feature they fall in.
+	 */
+	private static TrainingSamples separable(final int count, final long seed) {
+		final Random random = new Random(seed);
+		final TrainingSamples samples = new TrainingSamples(FEATURES);
+		final float[] features = new float[FEATURES];
+		for (int i = 0; i < count; i++) {
+			for (int f = 0; f < FEATURES; f++)
+				features[f] = random.nextFloat() * 3;
+			samples.add(features, (int) features[0]);
+		}
+		return samples;
+	}
+
+	private static int depth(final FlatForest forest, final int node) {
+		if (forest.attribute(node) < 0)
+			return 0;
+		return 1 + Math.max(depth(forest, forest.firstChild(node)), depth(forest, forest.firstChild(node) + 1));
+	}
+
+	private static byte[] bytes(final FlatForest forest) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		forest.write(new DataOutputStream(bytes), false);
+		return bytes.toByteArray();
+	}
+}
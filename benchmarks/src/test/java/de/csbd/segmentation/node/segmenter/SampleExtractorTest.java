@@ -0,0 +1,172 @@
+package de.csbd.segmentation.node.segmenter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.features.FeatureGroup;
+import net.imglib2.img.Img;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+public class SampleExtractorTest {
+
+	private static final int ROWS = 4;
+
+	private static final int THREADS = 4;
+
+	private FeatureGroup features;
+
+	private final List<Img<FloatType>> images = new ArrayList<>();
+
+	private final List<ImgLabeling<String, IntType>> labelings = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		features = BenchmarkData.features("gauss");
+		for (int row = 0; row < ROWS; row++) {
+			final Img<FloatType> image = BenchmarkData.image(new long[] { 48 + 16 * row, 40 });
+			images.add(image);
+			labelings.add(BenchmarkData.labeling(image, 0.1));
+		}
+	}
+
+	/**
+	 * Rows extracted concurrently and merged in row order give the samples
+	 * and the forest of the serial extraction.
+	 */
+	@Test
+	public void testParallelExtractionEqualsSerial() throws Exception {
+		for (final int maxSamples : new int[] { 0, 300 }) {
+			final ClassSampler sampler = new ClassSampler(maxSamples, 0, features.count(), 1);
+			final TrainingSamples serial = extract(sampler, 1, RowMetrics.disabled(), FeatureStorage.HEAP);
+			final TrainingSamples parallel = extract(sampler, THREADS, RowMetrics.disabled(), FeatureStorage.HEAP);
+			assertTrue(serial.size() > 0);
+			assertSameSamples(serial, parallel);
+			assertArrayEquals(bytes(trainColumnar(serial, 1)), bytes(trainColumnar(parallel, THREADS)));
+			assertArrayEquals(bytes(FlatForest.of(trainWeka(serial, 1))),
+					bytes(FlatForest.of(trainWeka(parallel, THREADS))));
+		}
+	}
+
+	/**
+	 * Collecting metrics and storing the features off the heap or in files
+	 * must not change the samples.
+	 */
+	@Test
+	public void testMetricsAndStorageDoNotChangeSamples() throws Exception {
+		final ClassSampler sampler = new ClassSampler(300, 0, features.count(), 1);
+		final TrainingSamples expected = extract(sampler, 1, RowMetrics.disabled(), FeatureStorage.HEAP);
+		for (final FeatureStorage storage : FeatureStorage.values())
+			assertSameSamples(expected, extract(sampler, THREADS, new RowMetrics(), storage));
+	}
+
+	/**
+	 * Computing the features only in the blocks that contain labels gives
+	 * the samples of the whole feature stack.
+	 */
+	@Test
+	public void testSparseExtractionEqualsDense() throws Exception {
+		final ClassSampler sampler = new ClassSampler(300, 0, features.count(), 1);
+		for (int row = 0; row < ROWS; row++) {
+			final LabelRegions<String> labeling = new LabelRegions<>(labelings.get(row));
+			final TrainingSamples dense = new SampleExtractor(features, ForkJoinPool.commonPool(), false, sampler,
+					FeatureStorage.HEAP, null).extract(images.get(row), labeling, BenchmarkData.CLASS_NAMES,
+							RowMetrics.disabled());
+			final TrainingSamples sparse = new SampleExtractor(features, ForkJoinPool.commonPool(), true, sampler,
+					FeatureStorage.HEAP, null).extract(images.get(row), labeling, BenchmarkData.CLASS_NAMES,
+							RowMetrics.disabled());
+			assertSameSamples(dense, sparse);
+		}
+	}
+
+	/**
+	 * An image and its labeling translated by the same offset give the
+	 * samples of the untranslated ones.
+	 */
+	@Test
+	public void testNonZeroMinimum() throws Exception {
+		final SampleExtractor extractor = new SampleExtractor(features, BenchmarkData.CLASS_NAMES,
+				ForkJoinPool.commonPool(), false);
+		final RandomAccessibleInterval<LabelingType<String>> translated = Views.translate(labelings.get(0), 7, -5);
+		assertSameSamples(extractor.extract(images.get(0), new LabelRegions<>(labelings.get(0))),
+				extractor.extract(Views.translate(images.get(0), 7, -5), new LabelRegions<>(translated)));
+	}
+
+	/**
+	 * Extracts the rows on a pool of the given size, several rows at a time,
+	 * and adds them to the reservoirs in row order, like the trainer node.
+	 */
+	private TrainingSamples extract(final ClassSampler sampler, final int threads, final RowMetrics metrics,
+			final FeatureStorage storage) throws Exception {
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			final SampleExtractor extractor = new SampleExtractor(features, pool, false, sampler, storage, this);
+			final List<Future<TrainingSamples>> rows = new ArrayList<>();
+			for (int row = 0; row < ROWS; row++) {
+				final Img<FloatType> image = images.get(row);
+				final LabelRegions<String> labeling = new LabelRegions<>(labelings.get(row));
+				rows.add(pool.submit(() -> extractor.extract(image, labeling, BenchmarkData.CLASS_NAMES, metrics)));
+			}
+			final ClassSampler.SampleReservoirs reservoirs = sampler.reservoirs();
+			for (final Future<TrainingSamples> row : rows)
+				reservoirs.add(row.get());
+			return reservoirs.samples();
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static FlatForest trainColumnar(final TrainingSamples samples, final int threads) throws Exception {
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			return new ForestTrainer(10, 0, 0, 1).train(samples, BenchmarkData.CLASS_NAMES.size(), pool);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private FastRandomForest trainWeka(final TrainingSamples samples, final int threads) throws Exception {
+		final FastRandomForest forest = new FastRandomForest();
+		forest.setNumTrees(10);
+		forest.setSeed(1);
+		forest.setNumThreads(threads);
+		forest.buildClassifier(
+				samples.toInstances(StackClassifier.header(features.attributeLabels(), BenchmarkData.CLASS_NAMES)));
+		return forest;
+	}
+
+	private static byte[] bytes(final FlatForest forest) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		forest.write(new DataOutputStream(bytes), false);
+		return bytes.toByteArray();
+	}
+
+	static void assertSameSamples(final TrainingSamples expected, final TrainingSamples actual) {
+		assertEquals(expected.featureCount(), actual.featureCount());
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals("label of sample " + i, expected.label(i), actual.label(i));
+			for (int f = 0; f < expected.featureCount(); f++)
+				assertEquals("sample " + i + ", feature " + f, Float.floatToRawIntBits(expected.get(i, f)),
+						Float.floatToRawIntBits(actual.get(i, f)));
+		}
+	}
+}
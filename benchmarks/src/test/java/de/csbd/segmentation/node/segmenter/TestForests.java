@@ -0,0 +1,73 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Small random forests and the samples they are trained and tested with.
+ */
+final class TestForests {
+
+	static final List<String> CLASS_NAMES = Arrays.asList("background", "membrane", "nucleus");
+
+	private TestForests() {
+	}
+
+	/**
+	 * Random samples whose class depends on the first two features. Every
+	 * 50th sample has a missing feature.
+	 */
+	static TrainingSamples samples(final int featureCount, final int count, final long seed) {
+		final Random random = new Random(seed);
+		final TrainingSamples samples = new TrainingSamples(featureCount);
+		final float[] features = new float[featureCount];
+		for (int i = 0; i < count; i++) {
+			for (int f = 0; f < featureCount; f++)
+				features[f] = random.nextFloat() * 10;
+			final int label = (int) (features[0] + features[1] / 2 + random.nextInt(2)) % CLASS_NAMES.size();
+			if (i % 50 == 0)
+				features[random.nextInt(featureCount)] = Float.NaN;
+			samples.add(features, label);
+		}
+		return samples;
+	}
+
+	static Instances header(final int featureCount) {
+		final List<String> names = new ArrayList<>();
+		for (int f = 0; f < featureCount; f++)
+			names.add("feature " + f);
+		return StackClassifier.header(names, CLASS_NAMES);
+	}
+
+	static FastRandomForest train(final TrainingSamples samples) throws Exception {
+		final FastRandomForest forest = new FastRandomForest();
+		forest.setNumTrees(10);
+		forest.setSeed(1);
+		forest.setNumThreads(1);
+		forest.buildClassifier(samples.toInstances(header(samples.featureCount())));
+		return forest;
+	}
+
+	static Instance instance(final TrainingSamples samples, final int sample) {
+		final double[] values = new double[samples.featureCount() + 1];
+		for (int f = 0; f < samples.featureCount(); f++)
+			values[f] = samples.get(sample, f);
+		final Instance instance = new DenseInstance(1, values);
+		instance.setDataset(header(samples.featureCount()));
+		return instance;
+	}
+
+	static boolean hasMissingValue(final TrainingSamples samples, final int sample) {
+		for (int f = 0; f < samples.featureCount(); f++)
+			if (Float.isNaN(samples.get(sample, f)))
+				return true;
+		return false;
+	}
+}
@@ -0,0 +1,116 @@
+package de.csbd.segmentation.node.segmenter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.features.FeatureGroup;
+import net.imglib2.algorithm.features.classification.Classifier;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class TiledSegmenterTest {
+
+	private static final int THREADS = 4;
+
+	private Img<FloatType> image;
+
+	private Classifier classifier;
+
+	private ExecutorService pool;
+
+	@Before
+	public void setUp() throws Exception {
+		final FeatureGroup features = BenchmarkData.features("gauss");
+		image = BenchmarkData.image(new long[] { 61, 47 });
+		pool = new ForkJoinPool(THREADS);
+		classifier = BenchmarkData.train(features,
+				BenchmarkData.samples(features, image, BenchmarkData.labeling(image, 0.1), pool), 1);
+	}
+
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Tiles that divide the image, tiles that do not and no tiles give the
+	 * same labels and probabilities, on one thread and on several.
+	 */
+	@Test
+	public void testTilesEqualTheWholeImage() throws Exception {
+		final ExecutorService serial = new ForkJoinPool(1);
+		try {
+			final TiledSegmenter.Segmentation expected = new TiledSegmenter(classifier, 0,
+					ProbabilityPrecision.FLOAT, 0, serial).segment(image);
+			assertNotNull(expected.probabilities());
+			for (final int tileSize : new int[] { 0, 16, 23 })
+				for (final ExecutorService threads : new ExecutorService[] { serial, pool }) {
+					final TiledSegmenter.Segmentation actual = new TiledSegmenter(classifier, tileSize,
+							ProbabilityPrecision.FLOAT, 0, threads).segment(image);
+					assertSameValues("labels, tile size " + tileSize, expected.labels(), actual.labels());
+					assertSameValues("probabilities, tile size " + tileSize, expected.probabilities(),
+							actual.probabilities());
+				}
+		} finally {
+			serial.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testNonZeroMinimum() throws Exception {
+		final TiledSegmenter segmenter = new TiledSegmenter(classifier, 16, null, 0, pool);
+		assertSameValues("labels", segmenter.segment(image).labels(),
+				segmenter.segment(Views.translate(image, 7, -5)).labels());
+	}
+
+	/**
+	 * No coarse label is more likely than one, so every block is segmented
+	 * at full resolution.
+	 */
+	@Test
+	public void testPyramidWithoutConfidentBlocksEqualsFullSegmentation() throws Exception {
+		for (final int tileSize : new int[] { 0, 16 }) {
+			final TiledSegmenter segmenter = new TiledSegmenter(classifier, tileSize, null, 0, pool);
+			assertSameValues("tile size " + tileSize, segmenter.segment(image).labels(),
+					segmenter.segmentPyramid(image, 2, 1.1, RowMetrics.disabled()).labels());
+		}
+	}
+
+	/**
+	 * All blocks of a constant image take the coarse label, which is the
+	 * label of the full segmentation.
+	 */
+	@Test
+	public void testPyramidOfConstantImageEqualsFullSegmentation() throws Exception {
+		final Img<FloatType> constant = ArrayImgs.floats(61, 47);
+		for (final FloatType value : constant)
+			value.set(70);
+		final TiledSegmenter segmenter = new TiledSegmenter(classifier, 16, null, 0, pool);
+		assertSameValues("labels", segmenter.segment(constant).labels(),
+				segmenter.segmentPyramid(constant, 4, 0, RowMetrics.disabled()).labels());
+	}
+
+	private static void assertSameValues(final String message,
+			final RandomAccessibleInterval<? extends RealType<?>> expected,
+			final RandomAccessibleInterval<? extends RealType<?>> actual) {
+		assertArrayEquals(Intervals.dimensionsAsLongArray(expected), Intervals.dimensionsAsLongArray(actual));
+		final Cursor<? extends RealType<?>> expectedCursor = Views.flatIterable(expected).cursor();
+		final Cursor<? extends RealType<?>> actualCursor = Views.flatIterable(actual).cursor();
+		while (expectedCursor.hasNext())
+			assertEquals(message, expectedCursor.next().getRealDouble(), actualCursor.next().getRealDouble(), 0);
+	}
+}
@@ -0,0 +1,97 @@
+package de.csbd.segmentation.node.segmenter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class TrainingSamplesTest {
+
+	private static final int FEATURES = 3;
+
+	@Test
+	public void testSamplesAreReadBack() throws Exception {
+		for (final boolean compress : new boolean[] { false, true }) {
+			final TrainingSamples samples = TestForests.samples(FEATURES, 1000, 1);
+			samples.add(new float[] { -0f, Float.NEGATIVE_INFINITY, Float.MAX_VALUE }, 2);
+			samples.add(new float[] { Float.MIN_VALUE, Float.POSITIVE_INFINITY, -1e-30f }, 0);
+			assertSameSamples(samples, readBack(samples, compress));
+		}
+	}
+
+	/**
+	 * The labels are written with one, two or four bytes, depending on the
+	 * largest one.
+	 */
+	@Test
+	public void testLargeLabelsAreReadBack() throws Exception {
+		for (final int largest : new int[] { 255, 256, 65535, 65536, Integer.MAX_VALUE })
+			for (final boolean compress : new boolean[] { false, true }) {
+				final TrainingSamples samples = new TrainingSamples(FEATURES);
+				samples.add(new float[] { 1, 2, 3 }, 0);
+				samples.add(new float[] { 4, 5, 6 }, largest);
+				samples.add(new float[] { 7, 8, 9 }, largest / 2);
+				assertSameSamples(samples, readBack(samples, compress));
+			}
+	}
+
+	@Test
+	public void testEmptySamplesAreReadBack() throws Exception {
+		for (final boolean compress : new boolean[] { false, true })
+			assertSameSamples(new TrainingSamples(FEATURES), readBack(new TrainingSamples(FEATURES), compress));
+	}
+
+	@Test
+	public void testTrainingDataIsReadBack() throws Exception {
+		for (final boolean compress : new boolean[] { false, true }) {
+			final TrainingData data = new TrainingData("features", TestForests.CLASS_NAMES, FEATURES, compress);
+			data.put("row 1", TestForests.samples(FEATURES, 300, 1));
+			data.put("row 2", TestForests.samples(FEATURES, 200, 2));
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			data.write(new DataOutputStream(bytes));
+			final TrainingData read = TrainingData.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+			assertEquals("features", read.featuresId());
+			assertEquals(TestForests.CLASS_NAMES, read.classNames());
+			assertEquals(FEATURES, read.featureCount());
+			assertEquals(2, read.rowCount());
+			assertSameSamples(data.get("row 1"), read.get("row 1"));
+			assertSameSamples(data.get("row 2"), read.get("row 2"));
+			assertNull(read.get("row 3"));
+		}
+	}
+
+	private static TrainingSamples readBack(final TrainingSamples samples, final boolean compress)
+			throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		samples.write(new DataOutputStream(bytes), compress);
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		final TrainingSamples read = TrainingSamples.read(in, samples.featureCount(), compress);
+		assertEquals("bytes left", 0, in.available());
+		return read;
+	}
+
+	/**
+	 * Compares the bits of the values, so NaN and negative zero must be kept.
+	 */
+	private static void assertSameSamples(final TrainingSamples expected, final TrainingSamples actual) {
+		assertEquals(expected.featureCount(), actual.featureCount());
+		assertEquals(expected.size(), actual.size());
+		final int[] expectedBits = new int[expected.featureCount()];
+		final int[] actualBits = new int[expected.featureCount()];
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals("label of sample " + i, expected.label(i), actual.label(i));
+			for (int f = 0; f < expected.featureCount(); f++) {
+				expectedBits[f] = Float.floatToRawIntBits(expected.get(i, f));
+				actualBits[f] = Float.floatToRawIntBits(actual.get(i, f));
+			}
+			assertArrayEquals("sample " + i, expectedBits, actualBits);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Float arrays that are handed out again once they are released, so that
+ * consecutive images of the same size share their feature buffers instead of
+ * allocating new ones.
+ * <p>
+ * The pool never holds more free memory than was taken at the same time
+ * before, so it is bounded by the peak usage of the images in flight. If the
+ * sizes change, the buffers of the least recently used sizes are dropped
+ * first. Taken buffers are zeroed, like newly allocated arrays.
+ * <p>
+ * The pool is thread-safe.
+ */
+final class BufferPool {
+
+	private final Map<Integer, ArrayDeque<float[]>> free = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long freeBytes = 0;
+
+	private long takenBytes = 0;
+
+	private long peakBytes = 0;
+
+	synchronized float[] take(final int length) {
+		takenBytes += bytes(length);
+		peakBytes = Math.max(peakBytes, takenBytes);
+		final ArrayDeque<float[]> buffers = free.get(length);
+		if (buffers == null || buffers.isEmpty())
+			return new float[length];
+		final float[] buffer = buffers.pop();
+		freeBytes -= bytes(length);
+		Arrays.fill(buffer, 0);
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer that was taken from this pool. It must not be used
+	 * afterwards.
+	 */
+	synchronized void release(final float[] buffer) {
+		final long bytes = bytes(buffer.length);
+		takenBytes -= bytes;
+		final Iterator<Map.Entry<Integer, ArrayDeque<float[]>>> eldest = free.entrySet().iterator();
+		while (freeBytes + bytes > peakBytes && eldest.hasNext()) {
+			final Map.Entry<Integer, ArrayDeque<float[]>> entry = eldest.next();
+			if (entry.getKey() == buffer.length)
+				continue;
+			freeBytes -= entry.getValue().size() * bytes(entry.getKey());
+			eldest.remove();
+		}
+		if (freeBytes + bytes > peakBytes)
+			return;
+		free.computeIfAbsent(buffer.length, length -> new ArrayDeque<>()).push(buffer);
+		freeBytes += bytes;
+	}
+
+	/**
+	 * Drops all free buffers.
+	 */
+	synchronized void clear() {
+		free.clear();
+		freeBytes = 0;
+	}
+
+	private static long bytes(final int length) {
+		return (long) length * Float.BYTES;
+	}
+}
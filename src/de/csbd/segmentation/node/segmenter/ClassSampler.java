@@ -0,0 +1,336 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.imglib2.Localizable;
+import net.imglib2.Positionable;
+
+/**
+ * Limits the number of training samples per class.
+ * <p>
+ * The labeled pixels of a class are streamed through a reservoir, which keeps
+ * a uniform random subset of at most the configured number of pixels without
+ * knowing the size of the class in advance. Every class is limited to the
+ * same number, so a dominant class such as the background no longer
+ * outweighs the others, and the memory and training time are bounded no
+ * matter how densely the images are labeled.
+ * <p>
+ * The budget is split between the classes that are known at the time: the
+ * classes of a row when its samples are extracted, the classes of all rows
+ * so far when the samples of a row are added to the {@link SampleReservoirs}
+ * of the table. A row never has more classes than the whole table, so each
+ * row keeps enough samples for the final limit, and only the samples of the
+ * rows in progress are held besides the budget.
+ * <p>
+ * The random numbers only depend on the seed and the class, so the same
+ * image and labeling always give the same samples.
+ */
+final class ClassSampler {
+
+	private static final ClassSampler UNLIMITED = new ClassSampler(0, 0, 0, 0);
+
+	private final int maxSamples;
+
+	private final int maxMegabytes;
+
+	private final int featureCount;
+
+	private final long seed;
+
+	/**
+	 * @param maxSamples maximal number of samples of all classes, zero for no
+	 *            limit
+	 * @param maxMegabytes maximal memory of the samples of all classes, zero
+	 *            for no limit
+	 */
+	ClassSampler(final int maxSamples, final int maxMegabytes, final int featureCount, final long seed) {
+		this.maxSamples = maxSamples;
+		this.maxMegabytes = maxMegabytes;
+		this.featureCount = featureCount;
+		this.seed = seed;
+	}
+
+	static ClassSampler unlimited() {
+		return UNLIMITED;
+	}
+
+	boolean isLimited() {
+		return maxSamples > 0 || maxMegabytes > 0;
+	}
+
+	/**
+	 * The budget split evenly between the classes, or zero if all samples are
+	 * used.
+	 */
+	int maxPerClass(final int classCount) {
+		if (!isLimited() || classCount == 0)
+			return 0;
+		long maxPerClass = Long.MAX_VALUE;
+		if (maxSamples > 0)
+			maxPerClass = maxSamples / classCount;
+		if (maxMegabytes > 0) {
+			final long bytesPerSample = (long) featureCount * Float.BYTES + Integer.BYTES;
+			maxPerClass = Math.min(maxPerClass, ((long) maxMegabytes << 20) / bytesPerSample / classCount);
+		}
+		return (int) Math.max(1, Math.min(maxPerClass, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Identifies the sampling, empty if all samples are used. Samples are only
+	 * reused from rows that were sampled the same way.
+	 */
+	String id() {
+		return isLimited() ? "|" + maxSamples + "," + maxMegabytes + "@" + seed : "";
+	}
+
+	/**
+	 * A reservoir for the pixels of one class of an image.
+	 *
+	 * @param classCount the number of classes of the image
+	 */
+	Reservoir reservoir(final int classIndex, final int classCount, final int numDimensions) {
+		return new Reservoir(maxPerClass(classCount), numDimensions, random(classIndex));
+	}
+
+	/**
+	 * Reservoirs for the samples of all rows, one per class.
+	 */
+	SampleReservoirs reservoirs() {
+		return new SampleReservoirs();
+	}
+
+	private Random random(final int stream) {
+		return new Random(seed ^ (stream + 1) * 0x9E3779B97F4A7C15L);
+	}
+
+	/**
+	 * A uniform random subset of a stream of pixels, see Vitter's algorithm R.
+	 */
+	static final class Reservoir {
+
+		private final int capacity;
+
+		private final int n;
+
+		private final Random random;
+
+		/** The indices of the kept pixels in the stream. */
+		private long[] indices = new long[16];
+
+		private long[] positions;
+
+		private int size = 0;
+
+		private long seen = 0;
+
+		/**
+		 * @param capacity maximal number of pixels, zero for all
+		 */
+		private Reservoir(final int capacity, final int n, final Random random) {
+			this.capacity = capacity > 0 ? capacity : Integer.MAX_VALUE;
+			this.n = n;
+			this.random = random;
+			this.positions = new long[16 * n];
+		}
+
+		/**
+		 * Offers the next pixel of the stream.
+		 */
+		void offer(final Localizable position) {
+			final long index = seen++;
+			final int slot;
+			if (size < capacity) {
+				if (size == indices.length) {
+					final int newCapacity = (int) Math.min(capacity, 2L * size);
+					indices = Arrays.copyOf(indices, newCapacity);
+					positions = Arrays.copyOf(positions, newCapacity * n);
+				}
+				slot = size++;
+			} else {
+				final long j = (long) (random.nextDouble() * seen);
+				if (j >= capacity)
+					return;
+				slot = (int) j;
+			}
+			indices[slot] = index;
+			for (int d = 0; d < n; d++)
+				positions[slot * n + d] = position.getLongPosition(d);
+		}
+
+		int size() {
+			return size;
+		}
+
+		/**
+		 * Sorts the kept pixels by their order in the stream.
+		 */
+		void sort() {
+			final Integer[] order = new Integer[size];
+			for (int i = 0; i < size; i++)
+				order[i] = i;
+			Arrays.sort(order, (a, b) -> Long.compare(indices[a], indices[b]));
+			final long[] sortedIndices = new long[size];
+			final long[] sortedPositions = new long[size * n];
+			for (int i = 0; i < size; i++) {
+				sortedIndices[i] = indices[order[i]];
+				System.arraycopy(positions, order[i] * n, sortedPositions, i * n, n);
+			}
+			indices = sortedIndices;
+			positions = sortedPositions;
+		}
+
+		void localize(final int i, final Positionable position) {
+			for (int d = 0; d < n; d++)
+				position.setPosition(positions[i * n + d], d);
+		}
+	}
+
+	/**
+	 * Uniform random subsets of the samples of each class of all rows, see
+	 * {@link Reservoir}. The rows must be added in row order, which makes the
+	 * subsets independent of the number of threads.
+	 * <p>
+	 * The samples of a new class lower the limit per class. The reservoirs
+	 * that are too large then drop randomly chosen samples, which keeps them
+	 * uniform, so the samples never exceed the budget.
+	 */
+	final class SampleReservoirs {
+
+		private final TrainingSamples samples = new TrainingSamples(featureCount);
+
+		/** The index of each kept sample among all samples added. */
+		private long[] indices = new long[16];
+
+		/** The kept samples of each class, as indices into the samples. */
+		private final List<int[]> slots = new ArrayList<>();
+
+		private final List<Random> randoms = new ArrayList<>();
+
+		private int[] sizes = new int[0];
+
+		private long[] seen = new long[0];
+
+		private int maxPerClass = Integer.MAX_VALUE;
+
+		private long added = 0;
+
+		private SampleReservoirs() {
+		}
+
+		/**
+		 * Offers the samples of the next row, whose labels are indices into
+		 * the classes of all rows.
+		 */
+		void add(final TrainingSamples row) {
+			if (!isLimited()) {
+				samples.addAll(row);
+				added += row.size();
+				return;
+			}
+			int classCount = sizes.length;
+			for (int i = 0; i < row.size(); i++)
+				classCount = Math.max(classCount, row.label(i) + 1);
+			if (classCount > sizes.length)
+				addClasses(classCount);
+			for (int i = 0; i < row.size(); i++)
+				offer(row, i);
+		}
+
+		/**
+		 * The kept samples in the order they were added.
+		 */
+		TrainingSamples samples() {
+			if (!isLimited())
+				return samples;
+			final Integer[] order = new Integer[samples.size()];
+			for (int i = 0; i < order.length; i++)
+				order[i] = i;
+			Arrays.sort(order, (a, b) -> Long.compare(indices[a], indices[b]));
+			final int[] sorted = new int[order.length];
+			for (int i = 0; i < order.length; i++)
+				sorted[i] = order[i];
+			return samples.subset(sorted, sorted.length);
+		}
+
+		private void offer(final TrainingSamples row, final int sample) {
+			final int label = row.label(sample);
+			final long index = added++;
+			final long count = ++seen[label];
+			if (sizes[label] < maxPerClass) {
+				slots.set(label, grow(slots.get(label), sizes[label] + 1));
+				slots.get(label)[sizes[label]++] = samples.size();
+				indices = grow(indices, samples.size() + 1);
+				indices[samples.size()] = index;
+				samples.add(row, sample);
+				return;
+			}
+			final long j = (long) (randoms.get(label).nextDouble() * count);
+			if (j >= maxPerClass)
+				return;
+			final int slot = slots.get(label)[(int) j];
+			samples.set(slot, row, sample);
+			indices[slot] = index;
+		}
+
+		/**
+		 * Lowers the limit per class to the new number of classes and drops
+		 * random samples from the reservoirs above it.
+		 */
+		private void addClasses(final int classCount) {
+			for (int c = sizes.length; c < classCount; c++) {
+				slots.add(new int[16]);
+				randoms.add(random(c));
+			}
+			sizes = Arrays.copyOf(sizes, classCount);
+			seen = Arrays.copyOf(seen, classCount);
+			maxPerClass = maxPerClass(classCount);
+			boolean dropped = false;
+			for (int c = 0; c < classCount; c++) {
+				final int[] classSlots = slots.get(c);
+				final Random random = randoms.get(c);
+				while (sizes[c] > maxPerClass) {
+					final int drop = random.nextInt(sizes[c]);
+					classSlots[drop] = classSlots[--sizes[c]];
+					dropped = true;
+				}
+			}
+			if (dropped)
+				compact();
+		}
+
+		/**
+		 * Moves the kept samples to the front, so the dropped ones are freed.
+		 */
+		private void compact() {
+			final int[] kept = new int[samples.size()];
+			int count = 0;
+			for (int c = 0; c < sizes.length; c++)
+				for (int i = 0; i < sizes[c]; i++)
+					kept[count++] = slots.get(c)[i];
+			Arrays.sort(kept, 0, count);
+			final int[] moved = new int[samples.size()];
+			for (int i = 0; i < count; i++) {
+				samples.set(i, samples, kept[i]);
+				indices[i] = indices[kept[i]];
+				moved[kept[i]] = i;
+			}
+			samples.truncate(count);
+			for (int c = 0; c < sizes.length; c++) {
+				final int[] classSlots = slots.get(c);
+				for (int i = 0; i < sizes[c]; i++)
+					classSlots[i] = moved[classSlots[i]];
+			}
+		}
+
+		private int[] grow(final int[] array, final int size) {
+			return size <= array.length ? array : Arrays.copyOf(array, Math.max(size, 2 * array.length));
+		}
+
+		private long[] grow(final long[] array, final int size) {
+			return size <= array.length ? array : Arrays.copyOf(array, Math.max(size, 2 * array.length));
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imagej.ops.OpService;
+import net.imglib2.algorithm.features.FeatureGroup;
+import net.imglib2.algorithm.features.classification.Classifier;
+import net.imglib2.algorithm.features.gson.FeaturesGson;
+
+/**
+ * Binary format of a {@link Classifier} whose Weka classifier can be
+ * converted to a {@link FlatForest}: a version header, the class names, the
+ * feature settings as JSON and the flat trees.
+ * <p>
+ * Reading a model in this format only fills a few primitive arrays, while
+ * {@link Classifier#load} deserializes every tree node as a Java object. A
+ * model in a file can also be memory-mapped, then the trees of an
+ * uncompressed forest are not read at all until they are used.
+ */
+final class ClassifierFormat {
+
+	private static final int VERSION = 1;
+
+	private ClassifierFormat() {
+	}
+
+	/**
+	 * @return the forest of the classifier, or null if the classifier has to
+	 *         be stored with {@link Classifier#store}
+	 */
+	static FlatForest forest(final Classifier classifier) {
+		return FlatForest.of(classifier.getClassifier());
+	}
+
+	/**
+	 * @param forest the forest of the classifier, see {@link #forest}
+	 * @param compress whether the trees are deflated
+	 */
+	static void write(final DataOutput out, final Classifier classifier, final FlatForest forest,
+			final boolean compress) throws IOException {
+		out.writeInt(VERSION);
+		final List<String> classNames = classifier.classNames();
+		out.writeInt(classNames.size());
+		for (final String className : classNames)
+			out.writeUTF(className);
+		final byte[] features = FeaturesGson.toJson(classifier.features()).getBytes(StandardCharsets.UTF_8);
+		out.writeInt(features.length);
+		out.write(features);
+		forest.write(out, compress);
+	}
+
+	static Classifier read(final DataInput in, final OpService ops) throws IOException {
+		return read(in, null, ops);
+	}
+
+	/**
+	 * Maps the file into memory. The arrays of an uncompressed forest stay in
+	 * the file, see {@link FlatForest#read(ByteBuffer)}, and remain valid
+	 * after the file is deleted on systems that allow this.
+	 */
+	static Classifier map(final File file, final OpService ops) throws IOException {
+		final ByteBuffer buffer;
+		try (RandomAccessFile randomAccess = new RandomAccessFile(file, "r");
+				FileChannel channel = randomAccess.getChannel()) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		return read(FlatForest.dataInput(buffer), buffer, ops);
+	}
+
+	/**
+	 * @param buffer the buffer the input reads from, or null for a stream
+	 */
+	private static Classifier read(final DataInput in, final ByteBuffer buffer, final OpService ops)
+			throws IOException {
+		final int version = in.readInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported version of classifier: " + version);
+		final int classCount = in.readInt();
+		final List<String> classNames = new ArrayList<>(classCount);
+		for (int i = 0; i < classCount; i++)
+			classNames.add(in.readUTF());
+		final byte[] json = new byte[in.readInt()];
+		in.readFully(json);
+		final FeatureGroup features = FeaturesGson.fromJson(new String(json, StandardCharsets.UTF_8), ops);
+		final FlatForest forest = buffer == null ? FlatForest.read(in) : FlatForest.read(buffer);
+		return new Classifier(ops, classNames, features, forest);
+	}
+}
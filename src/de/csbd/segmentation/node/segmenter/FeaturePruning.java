@@ -0,0 +1,184 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import net.imglib2.algorithm.features.FeatureGroup;
+import net.imglib2.algorithm.features.Features;
+import net.imglib2.algorithm.features.ops.FeatureOp;
+
+/**
+ * Reduces a {@link FeatureGroup} to the features a trained forest uses most.
+ * <p>
+ * The importance of a feature image is the number of nodes that split on it,
+ * each weighted by the fraction of the training samples of its tree that
+ * reach the node. Deep splits that only separate a few samples hardly count,
+ * so noise in the labels does not make every feature look important.
+ * <p>
+ * A {@link FeatureOp} can only be computed as a whole, so the ops are ranked
+ * by the mean importance of their feature images, which is the benefit per
+ * computed image, and the best ops are kept until the configured number of
+ * feature images is reached. The samples of the kept ops are the
+ * corresponding columns of the full training samples, so the forest can be
+ * trained again without extracting them again.
+ */
+final class FeaturePruning {
+
+	/** Samples per block when the forest is evaluated. */
+	private static final int BLOCK_SIZE = 1024;
+
+	private final FeatureGroup features;
+
+	private final List<FeatureOp> kept;
+
+	private final int[] columns;
+
+	private FeaturePruning(final FeatureGroup features, final List<FeatureOp> kept) {
+		this.features = features;
+		this.kept = kept;
+		this.columns = columns(features, kept);
+	}
+
+	/**
+	 * Selects the ops with the most important feature images.
+	 *
+	 * @param maxFeatures the number of feature images to keep at most; the
+	 *            best op is kept even if it has more
+	 */
+	static FeaturePruning select(final FeatureGroup features, final FlatForest forest, final int maxFeatures) {
+		final double[] importance = importance(forest, features.count());
+		final List<FeatureOp> ops = features.features();
+		final double[] opImportance = new double[ops.size()];
+		int column = 0;
+		for (int i = 0; i < ops.size(); i++) {
+			final int count = ops.get(i).count();
+			for (int f = 0; f < count; f++)
+				opImportance[i] += importance[column + f];
+			opImportance[i] /= Math.max(1, count);
+			column += count;
+		}
+		final Integer[] ranking = new Integer[ops.size()];
+		for (int i = 0; i < ranking.length; i++)
+			ranking[i] = i;
+		Arrays.sort(ranking, Comparator.comparingDouble((Integer i) -> -opImportance[i]));
+		final boolean[] selected = new boolean[ops.size()];
+		int count = 0;
+		for (final int i : ranking)
+			if (opImportance[i] > 0 && (count == 0 || count + ops.get(i).count() <= maxFeatures)) {
+				selected[i] = true;
+				count += ops.get(i).count();
+			}
+		if (count == 0)
+			selected[ranking[0]] = true;
+		final List<FeatureOp> kept = new ArrayList<>();
+		for (int i = 0; i < ops.size(); i++)
+			if (selected[i])
+				kept.add(ops.get(i));
+		return new FeaturePruning(features, kept);
+	}
+
+	/**
+	 * The splits on each feature, weighted by the fraction of samples that
+	 * reach them, summed over the trees.
+	 */
+	static double[] importance(final FlatForest forest, final int featureCount) {
+		final double[] importance = new double[featureCount];
+		for (int t = 0; t < forest.treeCount(); t++)
+			addImportance(forest, forest.root(t), 1, importance);
+		return importance;
+	}
+
+	private static void addImportance(final FlatForest forest, final int node, final double fraction,
+			final double[] importance) {
+		final int attribute = forest.attribute(node);
+		if (attribute < 0)
+			return;
+		importance[attribute] += fraction;
+		final double first = forest.firstChildFraction(node);
+		addImportance(forest, forest.firstChild(node), fraction * first, importance);
+		addImportance(forest, forest.firstChild(node) + 1, fraction * (1 - first), importance);
+	}
+
+	private static int[] columns(final FeatureGroup features, final List<FeatureOp> kept) {
+		final List<Integer> columns = new ArrayList<>();
+		int column = 0;
+		for (final FeatureOp op : features.features()) {
+			if (kept.contains(op))
+				for (int f = 0; f < op.count(); f++)
+					columns.add(column + f);
+			column += op.count();
+		}
+		return columns.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/**
+	 * Whether any op is removed.
+	 */
+	boolean prunes() {
+		return kept.size() < features.features().size();
+	}
+
+	FeatureGroup prunedFeatures() {
+		return Features.group(kept.toArray(new FeatureOp[kept.size()]));
+	}
+
+	int prunedCount() {
+		return columns.length;
+	}
+
+	/**
+	 * The samples of the kept features, sharing the columns of the given
+	 * samples of all features.
+	 */
+	TrainingSamples prune(final TrainingSamples samples) {
+		return samples.features(columns);
+	}
+
+	/**
+	 * Splits the samples into a training and a validation set.
+	 *
+	 * @return the training set, then the validation set
+	 */
+	static TrainingSamples[] split(final TrainingSamples samples, final double validationFraction,
+			final long seed) {
+		final Random random = new Random(seed);
+		final int[] training = new int[samples.size()];
+		final int[] validation = new int[samples.size()];
+		int trainingCount = 0;
+		int validationCount = 0;
+		for (int i = 0; i < samples.size(); i++)
+			if (random.nextDouble() < validationFraction)
+				validation[validationCount++] = i;
+			else
+				training[trainingCount++] = i;
+		return new TrainingSamples[] { samples.subset(training, trainingCount),
+				samples.subset(validation, validationCount) };
+	}
+
+	/**
+	 * The fraction of the samples the forest classifies correctly.
+	 */
+	static double accuracy(final FlatForest forest, final TrainingSamples samples) {
+		if (samples.size() == 0)
+			return Double.NaN;
+		final ForestEngine engine = forest.engine();
+		final int classCount = engine.classCount();
+		final float[][] block = new float[samples.featureCount()][BLOCK_SIZE];
+		final double[] distributions = new double[BLOCK_SIZE * classCount];
+		long correct = 0;
+		for (int from = 0; from < samples.size(); from += BLOCK_SIZE) {
+			final int size = Math.min(BLOCK_SIZE, samples.size() - from);
+			for (int f = 0; f < block.length; f++)
+				for (int i = 0; i < size; i++)
+					block[f][i] = samples.get(from + i, f);
+			engine.distributions(block, size, distributions);
+			for (int i = 0; i < size; i++)
+				if (StackClassifier.maxIndex(distributions, i * classCount, classCount) == samples.label(from + i))
+					correct++;
+		}
+		return (double) correct / samples.size();
+	}
+}
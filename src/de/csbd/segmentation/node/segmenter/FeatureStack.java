@@ -0,0 +1,168 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.features.FeatureGroup;
+import net.imglib2.algorithm.features.ops.FeatureOp;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * The feature images of a {@link FeatureGroup}, computed for an interval of
+ * an image.
+ * <p>
+ * The {@link FeatureOp}s of the group are independent of each other, so they
+ * are evaluated concurrently on the given thread pool. The pool is expected to
+ * be a {@link java.util.concurrent.ForkJoinPool}, which allows to call
+ * {@link #compute} from within a task that runs on the same pool.
+ */
+final class FeatureStack {
+
+	private final Interval interval;
+
+	private final List<RandomAccessibleInterval<FloatType>> features;
+
+	/** The arrays of the features if they were taken from a pool, else null. */
+	private final List<float[]> buffers;
+
+	FeatureStack(final Interval interval, final List<RandomAccessibleInterval<FloatType>> features) {
+		this(interval, features, null);
+	}
+
+	private FeatureStack(final Interval interval, final List<RandomAccessibleInterval<FloatType>> features,
+			final List<float[]> buffers) {
+		this.interval = interval;
+		this.features = features;
+		this.buffers = buffers;
+	}
+
+	/**
+	 * Returns the image as an infinite {@link FloatType} image, which is the
+	 * input expected by {@link #compute}.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static RandomAccessible<FloatType> source(final RandomAccessibleInterval<?> image) {
+		final RandomAccessibleInterval<RealType<?>> real = (RandomAccessibleInterval) image;
+		return Views.extendBorder(Converters.convert(real, (in, out) -> out.setReal(in.getRealFloat()),
+				new FloatType()));
+	}
+
+	/**
+	 * Computes the features for the given interval of the source. The filters
+	 * read the neighborhood of the interval directly from the source, so the
+	 * result equals the corresponding part of the features of the whole image.
+	 */
+	static FeatureStack compute(final FeatureGroup group, final RandomAccessible<FloatType> source,
+			final Interval interval, final ExecutorService pool) throws Exception {
+		return compute(group, source, interval, pool, FeatureStorage.HEAP, null);
+	}
+
+	/**
+	 * Computes the features into images of the given storage. Heap arrays can
+	 * be taken from a buffer pool instead. They are handed back by
+	 * {@link #release}, so the stack must not be kept, for example in the
+	 * {@link FeatureStackCache}.
+	 *
+	 * @param buffers the pool of the feature arrays, or null to allocate them;
+	 *            ignored unless the storage is the heap
+	 */
+	static FeatureStack compute(final FeatureGroup group, final RandomAccessible<FloatType> source,
+			final Interval interval, final ExecutorService pool, final FeatureStorage storage,
+			final BufferPool buffers) throws Exception {
+		final BufferPool heapBuffers = storage == FeatureStorage.HEAP ? buffers : null;
+		final RandomAccessible<FloatType> input = Views.offset(source, Intervals.minAsLongArray(interval));
+		final long[] dimensions = Intervals.dimensionsAsLongArray(interval);
+		final int length = (int) Intervals.numElements(interval);
+		final List<float[]> arrays = heapBuffers == null ? null : new ArrayList<>(group.count());
+		final List<Callable<List<RandomAccessibleInterval<FloatType>>>> tasks = new ArrayList<>();
+		for (final FeatureOp op : group.features()) {
+			final float[][] opArrays = new float[op.count()][];
+			for (int i = 0; i < op.count(); i++)
+				if (heapBuffers != null) {
+					opArrays[i] = heapBuffers.take(length);
+					arrays.add(opArrays[i]);
+				}
+			tasks.add(() -> {
+				final List<RandomAccessibleInterval<FloatType>> slices = new ArrayList<>(op.count());
+				for (int i = 0; i < op.count(); i++)
+					slices.add(opArrays[i] == null ? storage.create(dimensions)
+							: ArrayImgs.floats(opArrays[i], dimensions));
+				op.apply(input, slices);
+				return slices;
+			});
+		}
+		final List<RandomAccessibleInterval<FloatType>> features = new ArrayList<>(group.count());
+		try {
+			for (final List<RandomAccessibleInterval<FloatType>> slices : invokeAll(pool, tasks))
+				features.addAll(slices);
+		} catch (final Exception e) {
+			if (heapBuffers != null)
+				arrays.forEach(heapBuffers::release);
+			throw e;
+		}
+		return new FeatureStack(interval, Collections.unmodifiableList(features), arrays);
+	}
+
+	/**
+	 * Hands the feature arrays back to the pool they were taken from, if any.
+	 * The stack must not be used afterwards.
+	 */
+	void release(final BufferPool pool) {
+		if (buffers != null)
+			buffers.forEach(pool::release);
+	}
+
+	/**
+	 * Runs all tasks on the pool and returns their results in the order of
+	 * the tasks. The allocations of the tasks are counted for the
+	 * {@link RowMetrics} measurement of the calling thread, if any.
+	 */
+	static <T> List<T> invokeAll(final ExecutorService pool, final List<? extends Callable<T>> tasks)
+			throws Exception {
+		final AtomicLong counter = RowMetrics.currentCounter();
+		final List<Callable<T>> tracked = new ArrayList<>(tasks.size());
+		for (final Callable<T> task : tasks)
+			tracked.add(counter == null ? task : () -> RowMetrics.track(counter, task));
+		final List<T> results = new ArrayList<>(tasks.size());
+		try {
+			for (final Future<T> future : pool.invokeAll(tracked))
+				results.add(future.get());
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			throw e;
+		}
+		return results;
+	}
+
+	/**
+	 * The interval of the image these features belong to. The feature images
+	 * themselves have the same size but start at zero.
+	 */
+	Interval interval() {
+		return interval;
+	}
+
+	int count() {
+		return features.size();
+	}
+
+	RandomAccessibleInterval<FloatType> get(final int index) {
+		return features.get(index);
+	}
+}
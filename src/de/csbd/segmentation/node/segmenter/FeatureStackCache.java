@@ -0,0 +1,414 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.features.FeatureGroup;
+import net.imglib2.algorithm.features.gson.FeaturesGson;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Cache of {@link FeatureStack}s, shared by the trainer and the segmenter
+ * nodes.
+ * <p>
+ * An entry is identified by the content of the image, the feature settings
+ * and the interval the features were computed for. The least recently used
+ * entries are evicted once the memory limit is exceeded. If a disk limit is
+ * set, evicted entries are written to temporary files first and read back on
+ * the next access.
+ * <p>
+ * There is one cache per JVM. Its limits are global preferences, given in
+ * megabytes by the system properties {@value #SIZE_PROPERTY} and
+ * {@value #DISK_SIZE_PROPERTY}, e.g. in the {@code knime.ini}. A memory limit
+ * of zero, the default, disables the cache.
+ * <p>
+ * Each entry remembers the nodes that used it. A node releases its entries
+ * when it is reset or disposed, and the entries no other node used are
+ * dropped.
+ */
+final class FeatureStackCache {
+
+	static final String SIZE_PROPERTY = "de.csbd.segmentation.featureCacheSize";
+
+	static final String DISK_SIZE_PROPERTY = "de.csbd.segmentation.featureCacheDiskSize";
+
+	private static final FeatureStackCache INSTANCE = new FeatureStackCache(Long.getLong(SIZE_PROPERTY, 0) << 20,
+			Long.getLong(DISK_SIZE_PROPERTY, 0) << 20);
+
+	private final Map<Key, FeatureStack> memory = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final Map<Key, Spilled> disk = new LinkedHashMap<>(16, 0.75f, true);
+
+	/** The stacks that are being computed or read back from disk. */
+	private final Map<Key, CompletableFuture<FeatureStack>> loading = new HashMap<>();
+
+	/** Evicted stacks that are being written to disk, still found by lookups. */
+	private final Map<Key, FeatureStack> spilling = new HashMap<>();
+
+	/** The nodes that used an entry, see {@link #release(Object)}. */
+	private final Map<Key, Set<Object>> owners = new HashMap<>();
+
+	private final long maxMemoryBytes;
+
+	private final long maxDiskBytes;
+
+	private long memoryBytes = 0;
+
+	private long diskBytes = 0;
+
+	/**
+	 * A cache of its own, the nodes use {@link #getInstance()}.
+	 */
+	FeatureStackCache(final long maxMemoryBytes, final long maxDiskBytes) {
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.maxDiskBytes = maxDiskBytes;
+	}
+
+	static FeatureStackCache getInstance() {
+		return INSTANCE;
+	}
+
+	boolean isEnabled() {
+		return maxMemoryBytes > 0;
+	}
+
+	/**
+	 * Drops the entries no other owner used and deletes their temporary
+	 * files. Stacks that are being computed or read are cached once they are
+	 * done, and left to the eviction.
+	 */
+	synchronized void release(final Object owner) {
+		final Iterator<Map.Entry<Key, Set<Object>>> entries = owners.entrySet().iterator();
+		while (entries.hasNext()) {
+			final Map.Entry<Key, Set<Object>> entry = entries.next();
+			if (!entry.getValue().remove(owner) || !entry.getValue().isEmpty())
+				continue;
+			entries.remove();
+			final FeatureStack stack = memory.remove(entry.getKey());
+			if (stack != null)
+				memoryBytes -= bytes(stack);
+			final Spilled spilled = disk.remove(entry.getKey());
+			if (spilled != null) {
+				diskBytes -= spilled.bytes;
+				spilled.delete();
+			}
+			spilling.remove(entry.getKey());
+		}
+	}
+
+	/**
+	 * Returns the cached features, or computes and caches them.
+	 * <p>
+	 * The lock of the cache is only held to look up and insert entries. A
+	 * spilled stack is read back, and a missing one computed, by the first
+	 * thread that asks for it, while concurrent requests for the same key
+	 * wait for its result.
+	 *
+	 * @param owner the node the entry is released for, or null to leave it
+	 *            to the eviction
+	 * @param imageId see {@link #imageId}, ignored if the cache is disabled
+	 * @param featuresId see {@link #featuresId}
+	 * @param storage where a spilled stack is read back to, like the computed
+	 *            ones
+	 */
+	FeatureStack get(final Object owner, final String imageId, final String featuresId, final Interval interval,
+			final FeatureStorage storage, final Callable<FeatureStack> compute) throws Exception {
+		if (imageId == null || !isEnabled())
+			return compute.call();
+		final Key key = new Key(imageId, featuresId, interval);
+		final CompletableFuture<FeatureStack> future = new CompletableFuture<>();
+		final CompletableFuture<FeatureStack> pending;
+		final Spilled spilled;
+		synchronized (this) {
+			if (owner != null)
+				owners.computeIfAbsent(key, k -> new HashSet<>()).add(owner);
+			FeatureStack cached = memory.get(key);
+			if (cached == null)
+				cached = spilling.get(key);
+			if (cached != null)
+				return cached;
+			pending = loading.putIfAbsent(key, future);
+			spilled = pending == null ? disk.remove(key) : null;
+			if (spilled != null)
+				diskBytes -= spilled.bytes;
+		}
+		if (pending != null)
+			return await(pending, compute);
+		return load(key, future, spilled, storage, compute);
+	}
+
+	/**
+	 * Waits for the stack another thread loads, or computes it if that
+	 * failed.
+	 */
+	private static FeatureStack await(final CompletableFuture<FeatureStack> future,
+			final Callable<FeatureStack> compute) throws Exception {
+		try {
+			return future.get();
+		} catch (final ExecutionException e) {
+			return compute.call();
+		}
+	}
+
+	private FeatureStack load(final Key key, final CompletableFuture<FeatureStack> future, final Spilled spilled,
+			final FeatureStorage storage, final Callable<FeatureStack> compute) throws Exception {
+		final FeatureStack stack;
+		try {
+			stack = spilled != null ? restore(key, spilled, storage, compute) : compute.call();
+		} catch (final Exception | Error e) {
+			synchronized (this) {
+				loading.remove(key);
+			}
+			future.completeExceptionally(e);
+			throw e;
+		}
+		final List<Map.Entry<Key, FeatureStack>> evicted;
+		synchronized (this) {
+			loading.remove(key);
+			evicted = put(key, stack);
+		}
+		future.complete(stack);
+		spill(evicted);
+		return stack;
+	}
+
+	private static FeatureStack restore(final Key key, final Spilled spilled, final FeatureStorage storage,
+			final Callable<FeatureStack> compute) throws Exception {
+		try {
+			return spilled.read(key.interval(), storage);
+		} catch (final IOException e) {
+			// A failing read only costs a recomputation.
+			return compute.call();
+		}
+	}
+
+	private List<Map.Entry<Key, FeatureStack>> put(final Key key, final FeatureStack stack) {
+		if (!memory.containsKey(key)) {
+			memory.put(key, stack);
+			memoryBytes += bytes(stack);
+		}
+		return evict();
+	}
+
+	/**
+	 * Removes the least recently used stacks until the memory limit is met.
+	 * The ones that fit on disk are spilled by {@link #spill(List)} after the
+	 * lock is released, and found in {@link #spilling} until then.
+	 */
+	private List<Map.Entry<Key, FeatureStack>> evict() {
+		final List<Map.Entry<Key, FeatureStack>> evicted = new ArrayList<>();
+		final Iterator<Map.Entry<Key, FeatureStack>> entries = memory.entrySet().iterator();
+		while (memoryBytes > maxMemoryBytes && entries.hasNext()) {
+			final Map.Entry<Key, FeatureStack> eldest = entries.next();
+			entries.remove();
+			memoryBytes -= bytes(eldest.getValue());
+			if (bytes(eldest.getValue()) > maxDiskBytes) {
+				owners.remove(eldest.getKey());
+				continue;
+			}
+			spilling.put(eldest.getKey(), eldest.getValue());
+			evicted.add(eldest);
+		}
+		return evicted;
+	}
+
+	private void spill(final List<Map.Entry<Key, FeatureStack>> evicted) {
+		for (final Map.Entry<Key, FeatureStack> entry : evicted) {
+			final long bytes = bytes(entry.getValue());
+			Spilled spilled;
+			try {
+				spilled = Spilled.write(entry.getValue());
+			} catch (final IOException e) {
+				// A failing spill only costs a recomputation, the entry is dropped.
+				spilled = null;
+			}
+			synchronized (this) {
+				// The entry may have been released meanwhile.
+				final boolean current = spilling.remove(entry.getKey(), entry.getValue());
+				if (spilled == null) {
+					if (current)
+						owners.remove(entry.getKey());
+					continue;
+				}
+				if (!current) {
+					spilled.delete();
+					continue;
+				}
+				final Spilled replaced = disk.put(entry.getKey(), spilled);
+				if (replaced != null) {
+					diskBytes -= replaced.bytes;
+					replaced.delete();
+				}
+				diskBytes += bytes;
+				final Iterator<Map.Entry<Key, Spilled>> files = disk.entrySet().iterator();
+				while (diskBytes > maxDiskBytes && files.hasNext()) {
+					final Map.Entry<Key, Spilled> eldest = files.next();
+					files.remove();
+					owners.remove(eldest.getKey());
+					diskBytes -= eldest.getValue().bytes;
+					eldest.getValue().delete();
+				}
+			}
+		}
+	}
+
+	private static long bytes(final FeatureStack stack) {
+		return stack.count() * Intervals.numElements(stack.interval()) * Float.BYTES;
+	}
+
+	/**
+	 * Identifies an image by its size, pixel type and pixel values.
+	 */
+	static String imageId(final RandomAccessibleInterval<?> image) {
+		long h1 = 0x9E3779B97F4A7C15L;
+		long h2 = 0xC2B2AE3D27D4EB4FL;
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		final Cursor<RealType<?>> cursor = Views.flatIterable((RandomAccessibleInterval) image).cursor();
+		while (cursor.hasNext()) {
+			final long bits = Double.doubleToLongBits(cursor.next().getRealDouble());
+			h1 = Long.rotateLeft(h1 ^ bits, 31) * 0x87C37B91114253D5L;
+			h2 = Long.rotateLeft(h2 + bits, 27) * 0x4CF5AD432745937FL;
+		}
+		final Object type = Views.iterable(image).firstElement();
+		return Arrays.toString(Intervals.dimensionsAsLongArray(image)) + type.getClass().getName()
+				+ Long.toHexString(h1) + Long.toHexString(h2);
+	}
+
+	/**
+	 * Identifies the feature settings by a hash of their JSON representation.
+	 */
+	static String featuresId(final FeatureGroup features) {
+		try {
+			final byte[] json = FeaturesGson.toJson(features).getBytes(StandardCharsets.UTF_8);
+			final StringBuilder id = new StringBuilder();
+			for (final byte b : MessageDigest.getInstance("SHA-256").digest(json))
+				id.append(String.format("%02x", b));
+			return id.toString();
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static final class Key {
+
+		private final String imageId;
+
+		private final String featuresId;
+
+		private final long[] min;
+
+		private final long[] max;
+
+		private Key(final String imageId, final String featuresId, final Interval interval) {
+			this.imageId = imageId;
+			this.featuresId = featuresId;
+			this.min = Intervals.minAsLongArray(interval);
+			this.max = Intervals.maxAsLongArray(interval);
+		}
+
+		private Interval interval() {
+			return new FinalInterval(min, max);
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			final Key other = (Key) obj;
+			return imageId.equals(other.imageId) && featuresId.equals(other.featuresId)
+					&& Arrays.equals(min, other.min) && Arrays.equals(max, other.max);
+		}
+
+		@Override
+		public int hashCode() {
+			return ((imageId.hashCode() * 31 + featuresId.hashCode()) * 31 + Arrays.hashCode(min)) * 31
+					+ Arrays.hashCode(max);
+		}
+	}
+
+	/**
+	 * A feature stack written to a temporary file, as raw floats, one feature
+	 * after the other.
+	 */
+	private static final class Spilled {
+
+		private final File file;
+
+		private final int count;
+
+		private final long bytes;
+
+		private Spilled(final File file, final int count, final long bytes) {
+			this.file = file;
+			this.count = count;
+			this.bytes = bytes;
+		}
+
+		private static Spilled write(final FeatureStack stack) throws IOException {
+			final File file = File.createTempFile("feature-stack", ".bin");
+			file.deleteOnExit();
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+				for (int i = 0; i < stack.count(); i++)
+					for (final FloatType value : Views.flatIterable(stack.get(i)))
+						out.writeFloat(value.getRealFloat());
+			} catch (final IOException e) {
+				file.delete();
+				throw e;
+			}
+			return new Spilled(file, stack.count(), bytes(stack));
+		}
+
+		/**
+		 * Reads the stack back into images of the given storage, so a stack
+		 * kept off the heap does not come back as heap arrays.
+		 */
+		private FeatureStack read(final Interval interval, final FeatureStorage storage) throws IOException {
+			final long[] dimensions = Intervals.dimensionsAsLongArray(interval);
+			final List<RandomAccessibleInterval<FloatType>> features = new ArrayList<>(count);
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				for (int i = 0; i < count; i++) {
+					final Img<FloatType> feature = storage.create(dimensions);
+					for (final FloatType value : feature)
+						value.setReal(in.readFloat());
+					features.add(feature);
+				}
+			} finally {
+				delete();
+			}
+			return new FeatureStack(interval, features);
+		}
+
+		private void delete() {
+			file.delete();
+		}
+	}
+}
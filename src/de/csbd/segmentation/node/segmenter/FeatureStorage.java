@@ -0,0 +1,165 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+import net.imglib2.util.Intervals;
+
+/**
+ * Where the images of a {@link FeatureStack} are stored.
+ * <p>
+ * A feature stack has one float per pixel and feature, so the stack of a
+ * large volume easily exceeds the Java heap. Off-heap memory is allocated
+ * with direct buffers, which are only limited by the JVM option
+ * {@code -XX:MaxDirectMemorySize}, by default the maximum heap size
+ * {@code -Xmx}. Temporary files are mapped into memory,
+ * so the operating system pages them in and out and the stack is only
+ * limited by the disk. Both are split into buffers of at most
+ * {@link #CHUNK_SIZE} floats, because a buffer holds at most 2 GB.
+ * <p>
+ * The storage is freed once the image is garbage collected. A temporary file
+ * is deleted right after it is mapped, so it disappears when the mapping is
+ * released, or at the latest when the JVM exits.
+ */
+enum FeatureStorage {
+
+	HEAP("Java heap") {
+
+		@Override
+		Img<FloatType> create(final long[] dimensions) {
+			size(dimensions);
+			return ArrayImgs.floats(dimensions);
+		}
+	},
+
+	OFF_HEAP("Off-heap memory") {
+
+		@Override
+		Img<FloatType> create(final long[] dimensions) {
+			final int size = size(dimensions);
+			final FloatBuffer[] chunks = new FloatBuffer[chunkCount(size)];
+			for (int i = 0; i < chunks.length; i++)
+				chunks[i] = ByteBuffer.allocateDirect(chunkSize(size, i) * Float.BYTES)
+						.order(ByteOrder.nativeOrder()).asFloatBuffer();
+			return img(new BufferAccess(chunks), dimensions);
+		}
+	},
+
+	TEMPORARY_FILES("Temporary files") {
+
+		@Override
+		Img<FloatType> create(final long[] dimensions) throws IOException {
+			final int size = size(dimensions);
+			final FloatBuffer[] chunks = new FloatBuffer[chunkCount(size)];
+			final File file = File.createTempFile("features", ".bin");
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				final FileChannel channel = raf.getChannel();
+				for (int i = 0; i < chunks.length; i++)
+					chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * CHUNK_SIZE * Float.BYTES,
+							(long) chunkSize(size, i) * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+			} finally {
+				// Fails on Windows while the file is mapped.
+				if (!file.delete())
+					file.deleteOnExit();
+			}
+			return img(new BufferAccess(chunks), dimensions);
+		}
+	};
+
+	private static final int CHUNK_BITS = 28;
+
+	/** Floats per buffer, a gigabyte. */
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	private final String label;
+
+	private FeatureStorage(final String label) {
+		this.label = label;
+	}
+
+	/**
+	 * Creates a zero-filled feature image.
+	 *
+	 * @throws IllegalArgumentException if the image has more than
+	 *             {@link Integer#MAX_VALUE} pixels
+	 */
+	abstract Img<FloatType> create(long[] dimensions) throws IOException;
+
+	/**
+	 * The name shown in the dialog.
+	 */
+	@Override
+	public String toString() {
+		return label;
+	}
+
+	static String[] labels() {
+		final FeatureStorage[] values = values();
+		final String[] labels = new String[values.length];
+		for (int i = 0; i < values.length; i++)
+			labels[i] = values[i].label;
+		return labels;
+	}
+
+	static FeatureStorage fromLabel(final String label) {
+		for (final FeatureStorage storage : values())
+			if (storage.label.equals(label))
+				return storage;
+		throw new IllegalArgumentException("Unknown feature storage: " + label);
+	}
+
+	private static int size(final long[] dimensions) {
+		final long size = Intervals.numElements(dimensions);
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("A feature image of " + size
+					+ " pixels is too large, use a smaller tile size or sparse training.");
+		return (int) size;
+	}
+
+	private static int chunkCount(final int size) {
+		return Math.max(1, (int) (((long) size + CHUNK_SIZE - 1) >> CHUNK_BITS));
+	}
+
+	private static int chunkSize(final int size, final int chunk) {
+		return Math.min(CHUNK_SIZE, size - chunk * CHUNK_SIZE);
+	}
+
+	private static Img<FloatType> img(final BufferAccess access, final long[] dimensions) {
+		final ArrayImg<FloatType, BufferAccess> img = new ArrayImg<>(access, dimensions, new Fraction());
+		img.setLinkedType(new FloatType(img));
+		return img;
+	}
+
+	/**
+	 * The pixels of an image in a sequence of float buffers.
+	 */
+	private static final class BufferAccess implements FloatAccess {
+
+		private final FloatBuffer[] chunks;
+
+		private BufferAccess(final FloatBuffer[] chunks) {
+			this.chunks = chunks;
+		}
+
+		@Override
+		public float getValue(final int index) {
+			return chunks[index >>> CHUNK_BITS].get(index & CHUNK_SIZE - 1);
+		}
+
+		@Override
+		public void setValue(final int index, final float value) {
+			chunks[index >>> CHUNK_BITS].put(index & CHUNK_SIZE - 1, value);
+		}
+	}
+}
@@ -0,0 +1,549 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import weka.classifiers.AbstractClassifier;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * The trees of a {@link FastRandomForest}, stored in flat primitive arrays.
+ * <p>
+ * The arrays are views of one read-only buffer, which is either a direct
+ * buffer or, for a forest read from a memory-mapped file, a slice of that
+ * file. In the latter case the trees are not copied at all, and all users of
+ * the model share the pages of the file. The {@link ForestEngine} classifies
+ * directly on these views as well.
+ * <p>
+ * The nodes are stored interleaved, {@link #NODE_SIZE} ints per node, so
+ * visiting a node touches a single cache line. Node {@code n} splits on
+ * feature {@code attribute(n)}: samples with a value below
+ * {@code threshold(n)} continue at node {@code firstChild(n)}, the others at
+ * {@code firstChild(n) + 1}. A leaf has the attribute -1, and its child entry
+ * is the offset of its class distribution in {@code distributions}. The
+ * distributions of all trees are summed and normalized, exactly like
+ * {@link FastRandomForest} does.
+ * <p>
+ * The thresholds are rounded up to the next float. This gives the same
+ * decisions as the double split points of the forest for all values that
+ * are floats, which the features always are.
+ */
+final class FlatForest extends AbstractClassifier {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Version 1 stored each node field in an array of its own. */
+	private static final int VERSION = 2;
+
+	/**
+	 * Ints per node: the feature, the first child or leaf offset, the bits of
+	 * the float threshold and the bits of the fraction that went to the first
+	 * child.
+	 */
+	static final int NODE_SIZE = 4;
+
+	static final int ATTRIBUTE = 0;
+
+	static final int CHILD = 1;
+
+	static final int THRESHOLD = 2;
+
+	static final int MISSING_WEIGHT = 3;
+
+	private final int classCount;
+
+	private final int treeCount;
+
+	private final int nodeCount;
+
+	private final int distributionLength;
+
+	private final transient ByteBuffer buffer;
+
+	private final transient IntBuffer roots;
+
+	private final transient IntBuffer nodes;
+
+	private final transient DoubleBuffer distributions;
+
+	private transient volatile ForestEngine engine;
+
+	/**
+	 * @param buffer the arrays one after the other, see {@link #byteCount}
+	 */
+	private FlatForest(final int classCount, final int treeCount, final int nodeCount, final int distributionLength,
+			final ByteBuffer buffer) {
+		this.classCount = classCount;
+		this.treeCount = treeCount;
+		this.nodeCount = nodeCount;
+		this.distributionLength = distributionLength;
+		this.buffer = readOnlyDirect(buffer);
+		int offset = 0;
+		roots = slice(buffer, offset, treeCount * Integer.BYTES).asIntBuffer();
+		offset += treeCount * Integer.BYTES;
+		nodes = slice(buffer, offset, NODE_SIZE * nodeCount * Integer.BYTES).asIntBuffer();
+		offset += NODE_SIZE * nodeCount * Integer.BYTES;
+		distributions = slice(buffer, offset, distributionLength * Double.BYTES).asDoubleBuffer();
+	}
+
+	/**
+	 * Copies a heap buffer into a read-only direct buffer, the kind a mapped
+	 * file is read through. With all forests in the same kind of buffer, the
+	 * buffer calls of the {@link ForestEngine} stay monomorphic.
+	 */
+	private static ByteBuffer readOnlyDirect(final ByteBuffer buffer) {
+		if (buffer.isDirect() && buffer.isReadOnly())
+			return buffer;
+		final ByteBuffer copy = ByteBuffer.allocateDirect(buffer.remaining());
+		copy.put(buffer.duplicate());
+		copy.clear();
+		return copy.asReadOnlyBuffer();
+	}
+
+	/**
+	 * The arrays are little-endian, the byte order of common hardware, so the
+	 * views of a mapped file are read without swapping bytes.
+	 */
+	private static ByteBuffer slice(final ByteBuffer buffer, final int offset, final int length) {
+		final ByteBuffer duplicate = buffer.duplicate();
+		duplicate.position(offset);
+		duplicate.limit(offset + length);
+		return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Converts a trained {@link FastRandomForest}.
+	 *
+	 * @return the flat forest, or null if the classifier is no random forest or
+	 *         uses nominal features
+	 */
+	static FlatForest of(final weka.classifiers.Classifier classifier) {
+		if (classifier instanceof FlatForest)
+			return (FlatForest) classifier;
+		if (!(classifier instanceof FastRandomForest))
+			return null;
+		try {
+			if (field(classifier, "m_ZeroR") != null)
+				return null;
+			final Instances info = (Instances) field(classifier, "m_Info");
+			for (int a = 0; a < info.numAttributes(); a++)
+				if (a != info.classIndex() && !info.attribute(a).isNumeric())
+					return null;
+			final Object[] trees = (Object[]) field(field(classifier, "m_bagger"), "m_Classifiers");
+			final Flattener flattener = new Flattener(info.numClasses());
+			for (final Object tree : trees)
+				if (!flattener.count(tree))
+					return null;
+			return flattener.flatten(trees);
+		} catch (final ReflectiveOperationException | ClassCastException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Creates a forest from one array per node field, which are interleaved
+	 * into the layout described above.
+	 */
+	static FlatForest create(final int classCount, final int[] roots, final int[] attributes, final int[] children,
+			final float[] thresholds, final float[] missingWeights, final double[] distributions) {
+		final int nodeCount = attributes.length;
+		final ByteBuffer buffer = ByteBuffer.allocate(byteCount(roots.length, nodeCount, distributions.length))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.asIntBuffer().put(roots);
+		buffer.position(buffer.position() + roots.length * Integer.BYTES);
+		final IntBuffer nodes = buffer.asIntBuffer();
+		for (int n = 0; n < nodeCount; n++) {
+			nodes.put(attributes[n]);
+			nodes.put(children[n]);
+			nodes.put(Float.floatToRawIntBits(thresholds[n]));
+			nodes.put(Float.floatToRawIntBits(missingWeights[n]));
+		}
+		buffer.position(buffer.position() + NODE_SIZE * nodeCount * Integer.BYTES);
+		buffer.asDoubleBuffer().put(distributions);
+		buffer.clear();
+		return new FlatForest(classCount, roots.length, nodeCount, distributions.length, buffer);
+	}
+
+	private static Object field(final Object object, final String name) throws ReflectiveOperationException {
+		for (Class<?> c = object.getClass(); c != null; c = c.getSuperclass())
+			try {
+				final Field field = c.getDeclaredField(name);
+				field.setAccessible(true);
+				return field.get(object);
+			} catch (final NoSuchFieldException e) {
+				// declared in a super class
+			}
+		throw new NoSuchFieldException(name);
+	}
+
+	int classCount() {
+		return classCount;
+	}
+
+	int treeCount() {
+		return treeCount;
+	}
+
+	int nodeCount() {
+		return nodeCount;
+	}
+
+	int root(final int tree) {
+		return roots.get(tree);
+	}
+
+	/**
+	 * The feature node {@code n} splits on, or -1 for a leaf.
+	 */
+	int attribute(final int node) {
+		return nodes.get(NODE_SIZE * node + ATTRIBUTE);
+	}
+
+	/**
+	 * The first child of a split node, the second one follows it.
+	 */
+	int firstChild(final int node) {
+		return nodes.get(NODE_SIZE * node + CHILD);
+	}
+
+	float threshold(final int node) {
+		return Float.intBitsToFloat(nodes.get(NODE_SIZE * node + THRESHOLD));
+	}
+
+	/**
+	 * The fraction of the training samples of a split node that went to its
+	 * first child, used to weight the children for missing values.
+	 */
+	float firstChildFraction(final int node) {
+		return Float.intBitsToFloat(nodes.get(NODE_SIZE * node + MISSING_WEIGHT));
+	}
+
+	/**
+	 * The block classifier of this forest, which reads the same buffers. It
+	 * is created on first use and shared by all users of this forest.
+	 */
+	ForestEngine engine() {
+		ForestEngine result = engine;
+		if (result == null)
+			engine = result = new ForestEngine(classCount, roots, nodes, distributions);
+		return result;
+	}
+
+	@Override
+	public void buildClassifier(final Instances data) {
+		throw new UnsupportedOperationException("A flat forest is converted from a trained forest.");
+	}
+
+	@Override
+	public double[] distributionForInstance(final Instance instance) {
+		final double[] distribution = new double[classCount];
+		for (int t = 0; t < treeCount; t++)
+			addTree(roots.get(t), instance, 1, distribution);
+		double sum = 0;
+		for (final double p : distribution)
+			sum += p;
+		if (sum != 0)
+			for (int c = 0; c < classCount; c++)
+				distribution[c] /= sum;
+		return distribution;
+	}
+
+	private void addTree(int node, final Instance instance, final double weight, final double[] distribution) {
+		int attribute;
+		while ((attribute = attribute(node)) >= 0) {
+			final double value = instance.value(attribute);
+			final int first = firstChild(node);
+			if (Double.isNaN(value)) {
+				final float missingWeight = firstChildFraction(node);
+				addTree(first, instance, weight * missingWeight, distribution);
+				addTree(first + 1, instance, weight * (1 - missingWeight), distribution);
+				return;
+			}
+			node = (float) value < threshold(node) ? first : first + 1;
+		}
+		final int offset = firstChild(node);
+		for (int c = 0; c < classCount; c++)
+			distribution[c] += weight * distributions.get(offset + c);
+	}
+
+	/**
+	 * Writes a header with the version and the array sizes, followed by the
+	 * arrays, deflated if requested.
+	 */
+	void write(final DataOutput out, final boolean compress) throws IOException {
+		out.writeInt(VERSION);
+		out.writeInt(classCount);
+		out.writeInt(treeCount);
+		out.writeInt(nodeCount);
+		out.writeInt(distributionLength);
+		out.writeBoolean(compress);
+		final byte[] bytes = new byte[buffer.capacity()];
+		buffer.duplicate().get(bytes);
+		if (!compress) {
+			out.write(bytes);
+			return;
+		}
+		final Deflater deflater = new Deflater();
+		try {
+			final byte[] deflated = TrainingSamples.deflate(deflater, bytes);
+			out.writeInt(deflated.length);
+			out.write(deflated);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Reads a forest and copies its arrays into a direct buffer.
+	 */
+	static FlatForest read(final DataInput in) throws IOException {
+		return read(in, null);
+	}
+
+	/**
+	 * Reads a forest from the position of the buffer and moves the position
+	 * behind it. The arrays of an uncompressed forest are a slice of the
+	 * buffer, they are not copied.
+	 */
+	static FlatForest read(final ByteBuffer buffer) throws IOException {
+		return read(dataInput(buffer), buffer);
+	}
+
+	private static FlatForest read(final DataInput in, final ByteBuffer source) throws IOException {
+		final int version = in.readInt();
+		if (version != VERSION && version != 1)
+			throw new IOException("Unsupported version of random forest: " + version);
+		final int classCount = in.readInt();
+		final int treeCount = in.readInt();
+		final int nodeCount = in.readInt();
+		final int distributionLength = in.readInt();
+		final boolean compressed = in.readBoolean();
+		final int byteCount = byteCount(treeCount, nodeCount, distributionLength);
+		ByteBuffer arrays;
+		if (compressed) {
+			final byte[] deflated = new byte[in.readInt()];
+			in.readFully(deflated);
+			final Inflater inflater = new Inflater();
+			try {
+				arrays = ByteBuffer.wrap(TrainingSamples.inflate(inflater, deflated, byteCount));
+			} finally {
+				inflater.end();
+			}
+		} else if (source != null) {
+			if (source.remaining() < byteCount)
+				throw new IOException("Random forest is truncated.");
+			arrays = slice(source, source.position(), byteCount);
+			source.position(source.position() + byteCount);
+		} else {
+			final byte[] bytes = new byte[byteCount];
+			in.readFully(bytes);
+			arrays = ByteBuffer.wrap(bytes);
+		}
+		if (version == 1)
+			arrays = interleave(arrays, treeCount, nodeCount, distributionLength);
+		final FlatForest forest = new FlatForest(classCount, treeCount, nodeCount, distributionLength, arrays);
+		forest.validate();
+		return forest;
+	}
+
+	/**
+	 * Reads from the position of the buffer, without read-ahead, so the
+	 * position is right behind the last value read.
+	 */
+	static DataInput dataInput(final ByteBuffer buffer) {
+		return new DataInputStream(new InputStream() {
+
+			@Override
+			public int read() {
+				return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+			}
+
+			@Override
+			public int read(final byte[] bytes, final int offset, final int length) {
+				if (!buffer.hasRemaining())
+					return -1;
+				final int n = Math.min(length, buffer.remaining());
+				buffer.get(bytes, offset, n);
+				return n;
+			}
+		});
+	}
+
+	/**
+	 * Copies the arrays of version 1, big-endian and one per node field, into
+	 * the current layout. Both versions have the same size.
+	 */
+	private static ByteBuffer interleave(final ByteBuffer arrays, final int treeCount, final int nodeCount,
+			final int distributionLength) {
+		final ByteBuffer source = arrays.duplicate().order(ByteOrder.BIG_ENDIAN);
+		final IntBuffer fields = source.asIntBuffer();
+		final ByteBuffer result = ByteBuffer.allocate(byteCount(treeCount, nodeCount, distributionLength))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		final IntBuffer ints = result.asIntBuffer();
+		for (int t = 0; t < treeCount; t++)
+			ints.put(fields.get(t));
+		for (int n = 0; n < nodeCount; n++)
+			for (int field = 0; field < NODE_SIZE; field++)
+				ints.put(fields.get(treeCount + field * nodeCount + n));
+		final int distributions = (treeCount + NODE_SIZE * nodeCount) * Integer.BYTES;
+		source.position(distributions);
+		result.position(distributions);
+		result.asDoubleBuffer().put(source.asDoubleBuffer());
+		result.clear();
+		return result;
+	}
+
+	private static int byteCount(final int treeCount, final int nodeCount, final int distributionLength) {
+		return (treeCount + NODE_SIZE * nodeCount) * Integer.BYTES + distributionLength * Double.BYTES;
+	}
+
+	/**
+	 * Checks that all indices are in bounds, so a corrupt file fails on load
+	 * instead of during classification.
+	 */
+	private void validate() throws IOException {
+		for (int t = 0; t < treeCount; t++)
+			if (roots.get(t) < 0 || roots.get(t) >= nodeCount)
+				throw new IOException("Random forest is corrupt.");
+		for (int n = 0; n < nodeCount; n++) {
+			final int child = firstChild(n);
+			final boolean valid = attribute(n) < 0
+					? child >= 0 && child + classCount <= distributionLength
+					: child > n && child + 1 < nodeCount;
+			if (!valid)
+				throw new IOException("Random forest is corrupt.");
+		}
+	}
+
+	/**
+	 * Java serialization writes the binary format, the buffers themselves are
+	 * not serializable.
+	 */
+	private Object writeReplace() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		write(new DataOutputStream(bytes), false);
+		return new Serialized(bytes.toByteArray());
+	}
+
+	private static final class Serialized implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final byte[] bytes;
+
+		private Serialized(final byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		private Object readResolve() throws IOException {
+			return read(ByteBuffer.wrap(bytes));
+		}
+	}
+
+	/**
+	 * Copies the trees of a forest into flat arrays. The two children of a
+	 * node are stored next to each other, after their parent.
+	 */
+	private static final class Flattener {
+
+		private final int classCount;
+
+		private int nodeCount = 0;
+
+		private int distributionLength = 0;
+
+		private int[] attributes;
+
+		private int[] children;
+
+		private float[] thresholds;
+
+		private float[] missingWeights;
+
+		private double[] distributions;
+
+		private int nextNode = 0;
+
+		private int nextDistribution = 0;
+
+		private Flattener(final int classCount) {
+			this.classCount = classCount;
+		}
+
+		/**
+		 * Counts the nodes and leaf values of a tree.
+		 *
+		 * @return false if the tree has a node that can't be flattened
+		 */
+		private boolean count(final Object tree) throws ReflectiveOperationException {
+			nodeCount++;
+			if ((int) field(tree, "m_Attribute") < 0) {
+				final double[] classProbs = (double[]) field(tree, "m_ClassProbs");
+				distributionLength += classCount;
+				return classProbs == null || classProbs.length == classCount;
+			}
+			final Object[] successors = (Object[]) field(tree, "m_Successors");
+			return successors.length == 2 && count(successors[0]) && count(successors[1]);
+		}
+
+		private FlatForest flatten(final Object[] trees) throws ReflectiveOperationException {
+			attributes = new int[nodeCount];
+			children = new int[nodeCount];
+			thresholds = new float[nodeCount];
+			missingWeights = new float[nodeCount];
+			distributions = new double[distributionLength];
+			final int[] roots = new int[trees.length];
+			for (int t = 0; t < trees.length; t++) {
+				roots[t] = nextNode++;
+				fill(trees[t], roots[t]);
+			}
+			return create(classCount, roots, attributes, children, thresholds, missingWeights, distributions);
+		}
+
+		private void fill(final Object tree, final int node) throws ReflectiveOperationException {
+			final int attribute = (int) field(tree, "m_Attribute");
+			attributes[node] = attribute;
+			if (attribute < 0) {
+				final double[] classProbs = (double[]) field(tree, "m_ClassProbs");
+				children[node] = nextDistribution;
+				if (classProbs != null)
+					System.arraycopy(classProbs, 0, distributions, nextDistribution, classCount);
+				nextDistribution += classCount;
+				return;
+			}
+			final Object[] successors = (Object[]) field(tree, "m_Successors");
+			final double[] prop = (double[]) field(tree, "m_Prop");
+			final int first = nextNode;
+			nextNode += 2;
+			children[node] = first;
+			thresholds[node] = ceilToFloat((double) field(tree, "m_SplitPoint"));
+			missingWeights[node] = (float) prop[0];
+			fill(successors[0], first);
+			fill(successors[1], first + 1);
+		}
+	}
+
+	/**
+	 * The smallest float that is not less than the value. For every float
+	 * {@code v}, {@code v < value} holds exactly if {@code v < ceilToFloat(value)}.
+	 */
+	static float ceilToFloat(final double value) {
+		final float rounded = (float) value;
+		return rounded < value ? Math.nextUp(rounded) : rounded;
+	}
+}
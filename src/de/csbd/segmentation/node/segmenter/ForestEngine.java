@@ -0,0 +1,129 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+import static de.csbd.segmentation.node.segmenter.FlatForest.ATTRIBUTE;
+import static de.csbd.segmentation.node.segmenter.FlatForest.CHILD;
+import static de.csbd.segmentation.node.segmenter.FlatForest.MISSING_WEIGHT;
+import static de.csbd.segmentation.node.segmenter.FlatForest.NODE_SIZE;
+import static de.csbd.segmentation.node.segmenter.FlatForest.THRESHOLD;
+
+/**
+ * Classifies blocks of pixels with the trees of a {@link FlatForest}.
+ * <p>
+ * The engine reads the buffers of the forest directly, so the trees of a
+ * memory-mapped model are not copied onto the heap. The fields of a node are
+ * stored next to each other, so visiting a node touches a single cache line.
+ * A block is classified tree by tree, such that the nodes of a tree stay in
+ * the cache while all pixels of the block pass through it. Nothing is
+ * allocated per pixel.
+ * <p>
+ * The distribution of each pixel is the sum of the leaf distributions in the
+ * order of the trees, normalized, so it is the same as the one of the Weka
+ * classifier the forest was converted from.
+ */
+final class ForestEngine {
+
+	private final int classCount;
+
+	private final IntBuffer roots;
+
+	/** The nodes in the layout of {@link FlatForest}. */
+	private final IntBuffer nodes;
+
+	private final DoubleBuffer distributions;
+
+	/**
+	 * The buffers are only read with absolute indices, so they may be shared
+	 * with the forest and by several threads.
+	 */
+	ForestEngine(final int classCount, final IntBuffer roots, final IntBuffer nodes,
+			final DoubleBuffer distributions) {
+		this.classCount = classCount;
+		this.roots = roots;
+		this.nodes = nodes;
+		this.distributions = distributions;
+	}
+
+	int classCount() {
+		return classCount;
+	}
+
+	/**
+	 * Computes the class distributions of a block of pixels.
+	 *
+	 * @param features one array per feature, holding the values of the pixels
+	 *            of the block
+	 * @param size the number of pixels of the block
+	 * @param result receives the distribution of pixel {@code i} at
+	 *            {@code i * classCount()}
+	 */
+	void distributions(final float[][] features, final int size, final double[] result) {
+		final int length = size * classCount;
+		for (int i = 0; i < length; i++)
+			result[i] = 0;
+		for (int t = 0; t < roots.limit(); t++) {
+			final int root = NODE_SIZE * roots.get(t);
+			for (int i = 0; i < size; i++)
+				addTree(root, features, i, result);
+		}
+		for (int i = 0; i < size; i++) {
+			final int offset = i * classCount;
+			double sum = 0;
+			for (int c = 0; c < classCount; c++)
+				sum += result[offset + c];
+			if (sum != 0)
+				for (int c = 0; c < classCount; c++)
+					result[offset + c] /= sum;
+		}
+	}
+
+	/**
+	 * @param root the index of the first int of the root node in
+	 *            {@link #nodes}, as are all node indices below
+	 */
+	private void addTree(final int root, final float[][] features, final int pixel, final double[] result) {
+		final IntBuffer nodes = this.nodes;
+		int node = root;
+		int attribute;
+		while ((attribute = nodes.get(node + ATTRIBUTE)) >= 0) {
+			final float value = features[attribute][pixel];
+			if (value != value) {
+				addMissing(node, features, pixel, 1, result);
+				return;
+			}
+			final int first = NODE_SIZE * nodes.get(node + CHILD);
+			node = value < Float.intBitsToFloat(nodes.get(node + THRESHOLD)) ? first : first + NODE_SIZE;
+		}
+		final int leaf = nodes.get(node + CHILD);
+		final int offset = pixel * classCount;
+		for (int c = 0; c < classCount; c++)
+			result[offset + c] += distributions.get(leaf + c);
+	}
+
+	/**
+	 * Follows both children of a node whose feature is missing, weighted like
+	 * {@link FlatForest#distributionForInstance} does.
+	 */
+	private void addMissing(final int node, final float[][] features, final int pixel, final double weight,
+			final double[] result) {
+		final int attribute = nodes.get(node + ATTRIBUTE);
+		if (attribute < 0) {
+			final int leaf = nodes.get(node + CHILD);
+			final int offset = pixel * classCount;
+			for (int c = 0; c < classCount; c++)
+				result[offset + c] += weight * distributions.get(leaf + c);
+			return;
+		}
+		final float value = features[attribute][pixel];
+		final int first = NODE_SIZE * nodes.get(node + CHILD);
+		if (value != value) {
+			final float missingWeight = Float.intBitsToFloat(nodes.get(node + MISSING_WEIGHT));
+			addMissing(first, features, pixel, weight * missingWeight, result);
+			addMissing(first + NODE_SIZE, features, pixel, weight * (1 - missingWeight), result);
+		} else
+			addMissing(value < Float.intBitsToFloat(nodes.get(node + THRESHOLD)) ? first : first + NODE_SIZE,
+					features, pixel, weight, result);
+	}
+}
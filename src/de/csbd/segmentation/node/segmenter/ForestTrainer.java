@@ -0,0 +1,333 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+
+/**
+ * Trains a random forest directly on the float columns of
+ * {@link TrainingSamples}, without copying them into Weka instances.
+ * <p>
+ * The trees are grown like the ones of {@link FastRandomForest}: each tree on
+ * a bootstrap sample of the size of the training set, each node split on the
+ * feature and threshold with the largest information gain among randomly
+ * drawn features. At least {@code featuresPerNode} features are tried, and
+ * more until one of them gives a noticeable gain. Leaves store the class
+ * frequencies of their samples.
+ * <p>
+ * Besides the samples, a tree only needs an index and a sort key per sample
+ * of its bootstrap, so the memory needed is a small fraction of the Weka data
+ * set and the presorted indices {@link FastRandomForest} keeps per feature.
+ * The trees are trained concurrently on the given pool and stored in a
+ * {@link FlatForest}.
+ */
+final class ForestTrainer {
+
+	/** Gain in bits per sample from which no further features are tried. */
+	private static final double SUFFICIENT_GAIN = 1e-2;
+
+	/** Smaller gains are rounding errors and give no split. */
+	private static final double MINIMAL_GAIN = 1e-6;
+
+	private final int treeCount;
+
+	private final int featuresPerNode;
+
+	private final int maxDepth;
+
+	private final long seed;
+
+	/**
+	 * @param featuresPerNode number of features tried per node, zero for
+	 *            {@code log2(features) + 1}
+	 * @param maxDepth maximal depth of the trees, zero for unlimited
+	 */
+	ForestTrainer(final int treeCount, final int featuresPerNode, final int maxDepth, final long seed) {
+		this.treeCount = treeCount;
+		this.featuresPerNode = featuresPerNode;
+		this.maxDepth = maxDepth;
+		this.seed = seed;
+	}
+
+	/**
+	 * A trainer with the settings of the given forest.
+	 */
+	static ForestTrainer like(final FastRandomForest forest) {
+		return new ForestTrainer(forest.getNumTrees(), forest.getNumFeatures(), forest.getMaxDepth(),
+				forest.getSeed());
+	}
+
+	FlatForest train(final TrainingSamples samples, final int classCount, final ExecutorService pool)
+			throws Exception {
+		final int featureCount = samples.featureCount();
+		final int k = featuresPerNode < 1 || featuresPerNode > featureCount
+				? Math.min(featureCount, (int) (Math.log(featureCount) / Math.log(2)) + 1) : featuresPerNode;
+		final List<Callable<Tree>> tasks = new ArrayList<>(treeCount);
+		for (int t = 0; t < treeCount; t++) {
+			final long treeSeed = seed ^ (t * 0x9E3779B97F4A7C15L);
+			tasks.add(() -> new Tree(samples, classCount, k, new Random(treeSeed)));
+		}
+		return merge(FeatureStack.invokeAll(pool, tasks), classCount);
+	}
+
+	/**
+	 * Concatenates the nodes of the trees, shifting their child and leaf
+	 * offsets.
+	 */
+	private static FlatForest merge(final List<Tree> trees, final int classCount) {
+		int nodeCount = 0;
+		int distributionLength = 0;
+		for (final Tree tree : trees) {
+			nodeCount += tree.nodeCount;
+			distributionLength += tree.distributionLength;
+		}
+		final int[] roots = new int[trees.size()];
+		final int[] attributes = new int[nodeCount];
+		final int[] children = new int[nodeCount];
+		final float[] thresholds = new float[nodeCount];
+		final float[] missingWeights = new float[nodeCount];
+		final double[] distributions = new double[distributionLength];
+		int nodeOffset = 0;
+		int distributionOffset = 0;
+		for (int t = 0; t < trees.size(); t++) {
+			final Tree tree = trees.get(t);
+			roots[t] = nodeOffset;
+			for (int n = 0; n < tree.nodeCount; n++) {
+				attributes[nodeOffset + n] = tree.attributes[n];
+				children[nodeOffset + n] = tree.children[n]
+						+ (tree.attributes[n] < 0 ? distributionOffset : nodeOffset);
+			}
+			System.arraycopy(tree.thresholds, 0, thresholds, nodeOffset, tree.nodeCount);
+			System.arraycopy(tree.missingWeights, 0, missingWeights, nodeOffset, tree.nodeCount);
+			System.arraycopy(tree.distributions, 0, distributions, distributionOffset, tree.distributionLength);
+			nodeOffset += tree.nodeCount;
+			distributionOffset += tree.distributionLength;
+		}
+		return FlatForest.create(classCount, roots, attributes, children, thresholds, missingWeights,
+				distributions);
+	}
+
+	/**
+	 * A tree grown on a bootstrap sample, in the node layout of
+	 * {@link FlatForest}, with child and leaf offsets relative to the tree.
+	 */
+	private final class Tree {
+
+		private final TrainingSamples samples;
+
+		private final int classCount;
+
+		private final int k;
+
+		private final Random random;
+
+		/** The bootstrap; the samples of a node are a range of it. */
+		private final int[] indices;
+
+		/** Sort keys of the samples of the node being split. */
+		private final long[] keys;
+
+		private final int[] featureOrder;
+
+		private int nodeCount = 0;
+
+		private int distributionLength = 0;
+
+		private int[] attributes = new int[64];
+
+		private int[] children = new int[64];
+
+		private float[] thresholds = new float[64];
+
+		private float[] missingWeights = new float[64];
+
+		private double[] distributions = new double[256];
+
+		private Tree(final TrainingSamples samples, final int classCount, final int k, final Random random) {
+			this.samples = samples;
+			this.classCount = classCount;
+			this.k = k;
+			this.random = random;
+			final int size = samples.size();
+			indices = new int[size];
+			for (int i = 0; i < size; i++)
+				indices[i] = random.nextInt(size);
+			keys = new long[size];
+			featureOrder = new int[samples.featureCount()];
+			for (int f = 0; f < featureOrder.length; f++)
+				featureOrder[f] = f;
+			grow(addNodes(1), 0, size, 0);
+		}
+
+		private void grow(final int node, final int from, final int to, final int depth) {
+			final int size = to - from;
+			final double[] counts = new double[classCount];
+			for (int i = from; i < to; i++)
+				counts[samples.label(indices[i])]++;
+			double max = 0;
+			for (final double count : counts)
+				max = Math.max(max, count);
+			if (size < 2 || max == size || maxDepth > 0 && depth >= maxDepth) {
+				addLeaf(node, counts, size);
+				return;
+			}
+			final Split best = new Split();
+			final Split candidate = new Split();
+			boolean gainFound = false;
+			for (int i = 0; i < featureOrder.length && (i < k || !gainFound); i++) {
+				final int swap = i + random.nextInt(featureOrder.length - i);
+				final int feature = featureOrder[swap];
+				featureOrder[swap] = featureOrder[i];
+				featureOrder[i] = feature;
+				evaluate(feature, from, to, counts, candidate);
+				if (candidate.gain > best.gain)
+					best.set(candidate);
+				gainFound |= candidate.gain > SUFFICIENT_GAIN;
+			}
+			if (best.gain <= MINIMAL_GAIN) {
+				addLeaf(node, counts, size);
+				return;
+			}
+			final int middle = partition(best, from, to);
+			final int first = addNodes(2);
+			attributes[node] = best.feature;
+			children[node] = first;
+			thresholds[node] = best.threshold;
+			missingWeights[node] = (float) ((double) (middle - from) / size);
+			grow(first, from, middle, depth + 1);
+			grow(first + 1, middle, to, depth + 1);
+		}
+
+		/**
+		 * Finds the threshold of the feature with the largest information
+		 * gain. The samples are sorted by value, then the class counts left
+		 * and right of each position are updated sample by sample.
+		 */
+		private void evaluate(final int feature, final int from, final int to, final double[] counts,
+				final Split split) {
+			final int size = to - from;
+			for (int i = 0; i < size; i++)
+				keys[i] = (long) sortable(samples.get(indices[from + i], feature)) << 32 | i;
+			Arrays.sort(keys, 0, size);
+			final double[] left = new double[classCount];
+			final double[] right = counts.clone();
+			double leftSum = 0;
+			double rightSum = 0;
+			for (final double count : right)
+				rightSum += xlogx(count);
+			final double prior = xlogx(size) - rightSum;
+			split.feature = feature;
+			split.gain = 0;
+			for (int i = 0; i < size - 1; i++) {
+				final int label = samples.label(indices[from + (int) keys[i]]);
+				leftSum += xlogx(left[label] + 1) - xlogx(left[label]);
+				rightSum += xlogx(right[label] - 1) - xlogx(right[label]);
+				left[label]++;
+				right[label]--;
+				final int key = (int) (keys[i] >> 32);
+				final int next = (int) (keys[i + 1] >> 32);
+				if (key == next)
+					continue;
+				final float value = fromSortable(key);
+				final float nextValue = fromSortable(next);
+				if (Float.isNaN(nextValue))
+					break;
+				final double conditional = xlogx(i + 1) - leftSum + xlogx(size - i - 1) - rightSum;
+				final double gain = (prior - conditional) / size / Math.log(2);
+				if (gain > split.gain) {
+					split.gain = gain;
+					split.threshold = threshold(value, nextValue);
+				}
+			}
+		}
+
+		/**
+		 * Moves the samples below the threshold to the front of the range.
+		 *
+		 * @return the end of the samples below the threshold
+		 */
+		private int partition(final Split split, final int from, final int to) {
+			int i = from;
+			int j = to - 1;
+			while (i <= j)
+				if (samples.get(indices[i], split.feature) < split.threshold)
+					i++;
+				else {
+					final int swap = indices[i];
+					indices[i] = indices[j];
+					indices[j--] = swap;
+				}
+			return i;
+		}
+
+		private int addNodes(final int count) {
+			if (nodeCount + count > attributes.length) {
+				final int capacity = Math.max(nodeCount + count, 2 * attributes.length);
+				attributes = Arrays.copyOf(attributes, capacity);
+				children = Arrays.copyOf(children, capacity);
+				thresholds = Arrays.copyOf(thresholds, capacity);
+				missingWeights = Arrays.copyOf(missingWeights, capacity);
+			}
+			final int first = nodeCount;
+			nodeCount += count;
+			return first;
+		}
+
+		private void addLeaf(final int node, final double[] counts, final int size) {
+			if (distributionLength + classCount > distributions.length)
+				distributions = Arrays.copyOf(distributions,
+						Math.max(distributionLength + classCount, 2 * distributions.length));
+			attributes[node] = -1;
+			children[node] = distributionLength;
+			for (int c = 0; c < classCount; c++)
+				distributions[distributionLength + c] = size == 0 ? 0 : counts[c] / size;
+			distributionLength += classCount;
+		}
+	}
+
+	private static final class Split {
+
+		private int feature;
+
+		private float threshold;
+
+		private double gain = 0;
+
+		private void set(final Split other) {
+			feature = other.feature;
+			threshold = other.threshold;
+			gain = other.gain;
+		}
+	}
+
+	/**
+	 * A float threshold that separates the two values, close to their mean:
+	 * {@code value < threshold <= nextValue}.
+	 */
+	private static float threshold(final float value, final float nextValue) {
+		final float threshold = FlatForest.ceilToFloat(((double) value + nextValue) / 2);
+		return value < threshold ? threshold : Math.nextUp(value);
+	}
+
+	/**
+	 * Maps a float to an int with the same order. Both zeros map to the same
+	 * int, and NaN to a value above positive infinity.
+	 */
+	private static int sortable(final float value) {
+		final int bits = Float.floatToIntBits(value == 0 ? 0f : value);
+		return bits ^ (bits >> 31 & 0x7fffffff);
+	}
+
+	private static float fromSortable(final int key) {
+		return Float.intBitsToFloat(key ^ (key >> 31 & 0x7fffffff));
+	}
+
+	private static double xlogx(final double x) {
+		return x > 0 ? x * Math.log(x) : 0;
+	}
+}
@@ -0,0 +1,117 @@
+package de.csbd.segmentation.node.segmenter;
+
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Pixel types the labels of a segmentation can be stored with.
+ * <p>
+ * A {@link BitType} image packs 64 pixels into a long, so a two-class
+ * segmentation needs an eighth of the memory of a byte image. For a
+ * labeling, the pixels hold indices into the label sets of the labeling,
+ * where zero is the empty set, so they are the class index plus one.
+ */
+enum LabelType {
+
+	BYTE("Byte", 128) {
+
+		@Override
+		IntegerType<?> createType(final int classCount) {
+			return new ByteType();
+		}
+	},
+
+	BIT("Bit (two classes)", 2) {
+
+		@Override
+		IntegerType<?> createType(final int classCount) {
+			return new BitType();
+		}
+	},
+
+	UNSIGNED_BYTE("Unsigned byte", 256) {
+
+		@Override
+		IntegerType<?> createType(final int classCount) {
+			return new UnsignedByteType();
+		}
+	},
+
+	UNSIGNED_SHORT("Unsigned short", 65536) {
+
+		@Override
+		IntegerType<?> createType(final int classCount) {
+			return new UnsignedShortType();
+		}
+	},
+
+	LABELING("Labeling", 65535) {
+
+		@Override
+		IntegerType<?> createType(final int classCount) {
+			return classCount < 256 ? new UnsignedByteType() : new UnsignedShortType();
+		}
+
+		@Override
+		int firstLabel() {
+			return 1;
+		}
+	};
+
+	private final String label;
+
+	private final int maxClasses;
+
+	private LabelType(final String label, final int maxClasses) {
+		this.label = label;
+		this.maxClasses = maxClasses;
+	}
+
+	/**
+	 * The pixel type, which is also a {@link NativeType}.
+	 */
+	abstract IntegerType<?> createType(int classCount);
+
+	/**
+	 * The value stored for the first class.
+	 */
+	int firstLabel() {
+		return 0;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the type can not store the classes
+	 */
+	void checkClassCount(final int classCount) {
+		if (classCount > maxClasses)
+			throw new IllegalArgumentException("The model has " + classCount + " classes, but the label type "
+					+ label + " can only store " + maxClasses + ".");
+	}
+
+	/**
+	 * The name shown in the dialog.
+	 */
+	@Override
+	public String toString() {
+		return label;
+	}
+
+	static String[] labels() {
+		final LabelType[] values = values();
+		final String[] labels = new String[values.length];
+		for (int i = 0; i < values.length; i++)
+			labels[i] = values[i].label;
+		return labels;
+	}
+
+	static LabelType fromLabel(final String label) {
+		for (final LabelType type : values())
+			if (type.label.equals(label))
+				return type;
+		throw new IllegalArgumentException("Unknown label type: " + label);
+	}
+}
@@ -0,0 +1,71 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.LongCell;
+import org.knime.core.data.def.StringCell;
+import org.knime.core.node.streamable.RowOutput;
+
+/**
+ * Writes {@link RowMetrics} to a table with one row per input row and stage,
+ * and sums them up per stage.
+ * <p>
+ * The row keys are made of the input row key and the stage, so they stay
+ * unique when the partitions of a distributed streaming execution are merged.
+ */
+final class MetricsTable {
+
+	private final Map<String, double[]> totals = new LinkedHashMap<>();
+
+	static DataTableSpec createSpec() {
+		return new DataTableSpec(new DataColumnSpecCreator("Row ID", StringCell.TYPE).createSpec(),
+				new DataColumnSpecCreator("Stage", StringCell.TYPE).createSpec(),
+				new DataColumnSpecCreator("Time (ms)", DoubleCell.TYPE).createSpec(),
+				new DataColumnSpecCreator("Pixels", LongCell.TYPE).createSpec(),
+				new DataColumnSpecCreator("Allocated bytes", LongCell.TYPE).createSpec());
+	}
+
+	/**
+	 * Pushes one row per stage of the metrics.
+	 *
+	 * @param rowId the input row the metrics belong to, empty for metrics of
+	 *            the whole table
+	 */
+	void push(final RowOutput output, final String rowId, final RowMetrics metrics) throws InterruptedException {
+		for (final RowMetrics.Stage stage : metrics.stages()) {
+			output.push(new DefaultRow(new RowKey(rowId + "#" + stage.name()), new DataCell[] { new StringCell(rowId),
+					new StringCell(stage.name()), new DoubleCell(stage.milliseconds()), new LongCell(stage.pixels()),
+					new LongCell(stage.allocatedBytes()) }));
+			double[] total = totals.get(stage.name());
+			if (total == null) {
+				total = new double[2];
+				totals.put(stage.name(), total);
+			}
+			total[0] += stage.milliseconds();
+			total[1] += stage.allocatedBytes();
+		}
+	}
+
+	/**
+	 * Hands two values per stage to the consumer, which is expected to push
+	 * them as flow variables: the time in milliseconds and the allocated
+	 * bytes, both summed over all rows like the columns of the table.
+	 * <p>
+	 * In streaming execution, the partitions have no common place to push
+	 * them from, so the nodes only push them in classic execution.
+	 */
+	void pushFlowVariables(final BiConsumer<String, Double> push) {
+		for (final Map.Entry<String, double[]> total : totals.entrySet()) {
+			push.accept(total.getKey() + " time (ms)", total.getValue()[0]);
+			push.accept(total.getKey() + " allocated bytes", total.getValue()[1]);
+		}
+	}
+}
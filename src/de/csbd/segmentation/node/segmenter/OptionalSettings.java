@@ -0,0 +1,62 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeSettings;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModel;
+
+/**
+ * Settings that were added to a node after its first release.
+ * <p>
+ * Workflows saved with an older version of the node do not contain them. A
+ * missing setting keeps its default value instead of failing validation, so
+ * these workflows still load and behave as before. A setting that is present
+ * is validated and loaded as usual.
+ */
+final class OptionalSettings {
+
+	private final List<SettingsModel> models = new ArrayList<>();
+
+	private final List<NodeSettings> defaults = new ArrayList<>();
+
+	/**
+	 * @param models the settings, holding their default values
+	 */
+	OptionalSettings(final SettingsModel... models) {
+		for (final SettingsModel model : models) {
+			final NodeSettings value = new NodeSettings("default");
+			model.saveSettingsTo(value);
+			this.models.add(model);
+			this.defaults.add(value);
+		}
+	}
+
+	void saveSettingsTo(final NodeSettingsWO settings) {
+		for (final SettingsModel model : models)
+			model.saveSettingsTo(settings);
+	}
+
+	void validateSettings(final NodeSettingsRO settings) throws InvalidSettingsException {
+		for (int i = 0; i < models.size(); i++)
+			if (containsAll(settings, defaults.get(i)))
+				models.get(i).validateSettings(settings);
+	}
+
+	void loadSettingsFrom(final NodeSettingsRO settings) throws InvalidSettingsException {
+		for (int i = 0; i < models.size(); i++) {
+			final NodeSettings value = defaults.get(i);
+			models.get(i).loadSettingsFrom(containsAll(settings, value) ? settings : value);
+		}
+	}
+
+	private static boolean containsAll(final NodeSettingsRO settings, final NodeSettings keys) {
+		for (final String key : keys.keySet())
+			if (!settings.containsKey(key))
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,127 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.knime.core.data.DataRow;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
+
+/**
+ * Applies a function to the rows of a table on a thread pool and hands the
+ * results to a consumer in input order.
+ * <p>
+ * At most {@code maxInFlight} rows are processed at the same time, so the
+ * number of results held in memory stays bounded, independent of the table
+ * size. The consumer is always called on the thread that called
+ * {@link #process}.
+ */
+final class OrderedRowProcessor<R> {
+
+	/** Time between two cancellation checks while waiting for a row. */
+	private static final long POLL_MILLISECONDS = 100;
+
+	/**
+	 * Returns the next row, or null after the last row.
+	 */
+	interface RowSource {
+		DataRow next() throws Exception;
+	}
+
+	interface RowFunction<R> {
+		R apply(DataRow row) throws Exception;
+	}
+
+	interface ResultConsumer<R> {
+		void accept(DataRow row, R result) throws Exception;
+	}
+
+	private final ExecutorService pool;
+
+	private final int maxInFlight;
+
+	private final ExecutionMonitor exec;
+
+	private final Deque<Pending<R>> pending = new ArrayDeque<>();
+
+	OrderedRowProcessor(final ExecutorService pool, final int maxInFlight, final ExecutionMonitor exec) {
+		this.pool = pool;
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.exec = exec;
+	}
+
+	void process(final Iterable<DataRow> rows, final RowFunction<R> function, final ResultConsumer<R> consumer)
+			throws Exception {
+		final Iterator<DataRow> iterator = rows.iterator();
+		process(() -> iterator.hasNext() ? iterator.next() : null, function, consumer);
+	}
+
+	/**
+	 * Processes the rows of a source that only hands out one row at a time,
+	 * such as a streamed input port. The next row is only requested once a
+	 * slot is free.
+	 */
+	void process(final RowSource rows, final RowFunction<R> function, final ResultConsumer<R> consumer)
+			throws Exception {
+		try {
+			DataRow row;
+			while ((row = rows.next()) != null) {
+				exec.checkCanceled();
+				final DataRow current = row;
+				pending.addLast(new Pending<>(current, pool.submit(() -> function.apply(current))));
+				while (pending.size() >= maxInFlight)
+					consumeFirst(consumer);
+			}
+			while (!pending.isEmpty())
+				consumeFirst(consumer);
+		} finally {
+			for (final Pending<R> p : pending)
+				p.result.cancel(true);
+			pending.clear();
+		}
+	}
+
+	private void consumeFirst(final ResultConsumer<R> consumer) throws Exception {
+		final Pending<R> first = pending.peekFirst();
+		final R result = await(first.result);
+		pending.removeFirst();
+		consumer.accept(first.row, result);
+	}
+
+	private R await(final Future<R> future) throws Exception {
+		while (true) {
+			exec.checkCanceled();
+			try {
+				return future.get(POLL_MILLISECONDS, TimeUnit.MILLISECONDS);
+			} catch (final TimeoutException e) {
+				// check for cancellation and wait again
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CanceledExecutionException();
+			} catch (final ExecutionException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof Exception)
+					throw (Exception) cause;
+				throw e;
+			}
+		}
+	}
+
+	private static final class Pending<R> {
+
+		private final DataRow row;
+
+		private final Future<R> result;
+
+		private Pending(final DataRow row, final Future<R> result) {
+			this.row = row;
+			this.result = result;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package de.csbd.segmentation.node.segmenter;
+
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Pixel types the class probabilities can be stored with.
+ * <p>
+ * Half precision floats are stored as their raw 16 bit pattern in an
+ * {@link UnsignedShortType}. For probabilities, which are never negative, the
+ * order of the patterns equals the order of the values, so thresholds can be
+ * applied after converting them with {@link #toHalfFloat}.
+ */
+enum ProbabilityPrecision {
+
+	FLOAT("Float (32 bit)") {
+
+		@Override
+		RealType<?> createType() {
+			return new FloatType();
+		}
+
+		@Override
+		double encode(final double probability) {
+			return probability;
+		}
+	},
+
+	HALF_FLOAT("Half float (16 bit)") {
+
+		@Override
+		RealType<?> createType() {
+			return new UnsignedShortType();
+		}
+
+		@Override
+		double encode(final double probability) {
+			return toHalfFloat((float) probability);
+		}
+	},
+
+	UNSIGNED_BYTE("8 bit") {
+
+		@Override
+		RealType<?> createType() {
+			return new UnsignedByteType();
+		}
+
+		@Override
+		double encode(final double probability) {
+			return Math.round(probability * 255);
+		}
+	};
+
+	private final String label;
+
+	private ProbabilityPrecision(final String label) {
+		this.label = label;
+	}
+
+	abstract RealType<?> createType();
+
+	/**
+	 * Returns the value to store for a probability between zero and one.
+	 */
+	abstract double encode(double probability);
+
+	/**
+	 * The name shown in the dialog.
+	 */
+	@Override
+	public String toString() {
+		return label;
+	}
+
+	static String[] labels() {
+		final ProbabilityPrecision[] values = values();
+		final String[] labels = new String[values.length];
+		for (int i = 0; i < values.length; i++)
+			labels[i] = values[i].label;
+		return labels;
+	}
+
+	static ProbabilityPrecision fromLabel(final String label) {
+		for (final ProbabilityPrecision precision : values())
+			if (precision.label.equals(label))
+				return precision;
+		throw new IllegalArgumentException("Unknown probability precision: " + label);
+	}
+
+	/**
+	 * Converts a float to the bit pattern of the nearest half precision float.
+	 * Values too large for half precision become infinite.
+	 */
+	static int toHalfFloat(final float value) {
+		final int bits = Float.floatToIntBits(value);
+		final int sign = (bits >>> 16) & 0x8000;
+		final int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+		final int mantissa = bits & 0x7fffff;
+		if (exponent >= 31)
+			return sign | 0x7c00;
+		if (exponent <= 0) {
+			if (exponent < -10)
+				return sign;
+			final int shift = 14 - exponent;
+			return sign | (((mantissa | 0x800000) + (1 << (shift - 1))) >> shift);
+		}
+		// A carry of the rounded mantissa correctly increments the exponent.
+		return sign | ((exponent << 10) + ((mantissa + 0x1000) >> 13));
+	}
+}
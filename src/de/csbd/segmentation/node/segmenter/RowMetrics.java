@@ -0,0 +1,171 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wall time, pixel count and allocated bytes of the processing stages of a
+ * single row. Measurements of the same stage add up.
+ * <p>
+ * Allocated bytes are counted per thread. Tasks that a stage hands to the
+ * thread pool pass the counter of the stage on, see {@link #track}, so their
+ * allocations are included. A thread that helps with the tasks of another row
+ * while it waits counts them for its own row, so with several rows in flight
+ * the bytes of a row are an approximation, while the sum over all rows is
+ * exact.
+ */
+final class RowMetrics {
+
+	static final String READ = "Read image";
+
+	static final String FINGERPRINT = "Fingerprint row";
+
+	static final String FEATURES = "Compute features";
+
+	static final String CLASSIFY = "Classify";
+
+	static final String EXTRACT = "Extract samples";
+
+	static final String WRITE = "Write result";
+
+	static final String TRAIN = "Train classifier";
+
+	private static final RowMetrics DISABLED = new RowMetrics(false);
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	/** The allocation counter of the measurement running on a thread. */
+	private static final ThreadLocal<AtomicLong> COUNTER = new ThreadLocal<>();
+
+	private final boolean enabled;
+
+	private final Map<String, Stage> stages = new LinkedHashMap<>();
+
+	RowMetrics() {
+		this(true);
+	}
+
+	private RowMetrics(final boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Metrics that measure nothing and only run the tasks.
+	 */
+	static RowMetrics disabled() {
+		return DISABLED;
+	}
+
+	/**
+	 * Runs the task and adds its wall time, the given number of pixels and the
+	 * bytes it allocated to the stage.
+	 */
+	<T> T measure(final String stage, final long pixels, final Callable<T> task) throws Exception {
+		if (!enabled)
+			return task.call();
+		final AtomicLong allocated = new AtomicLong();
+		final long start = System.nanoTime();
+		final T result = track(allocated, task);
+		add(stage, System.nanoTime() - start, pixels, allocated.get());
+		return result;
+	}
+
+	/**
+	 * Adds pixels to a stage whose pixel count is only known after it ran.
+	 */
+	void addPixels(final String stage, final long pixels) {
+		if (enabled)
+			add(stage, 0, pixels, 0);
+	}
+
+	private synchronized void add(final String name, final long nanos, final long pixels, final long bytes) {
+		Stage stage = stages.get(name);
+		if (stage == null) {
+			stage = new Stage(name);
+			stages.put(name, stage);
+		}
+		stage.nanos += nanos;
+		stage.pixels += pixels;
+		stage.allocatedBytes += bytes;
+	}
+
+	/**
+	 * The stages in the order they were first measured.
+	 */
+	synchronized List<Stage> stages() {
+		return Collections.unmodifiableList(new ArrayList<>(stages.values()));
+	}
+
+	/**
+	 * Runs the task and adds the bytes it allocates on the current thread to
+	 * the counter. If the thread is already counting, for example because it
+	 * runs a subtask while it waits for it, the bytes are counted once by the
+	 * enclosing measurement.
+	 *
+	 * @param counter the counter, see {@link #currentCounter}, or null
+	 */
+	static <T> T track(final AtomicLong counter, final Callable<T> task) throws Exception {
+		if (counter == null || COUNTER.get() != null)
+			return task.call();
+		COUNTER.set(counter);
+		final long before = allocatedBytes();
+		try {
+			return task.call();
+		} finally {
+			counter.addAndGet(allocatedBytes() - before);
+			COUNTER.remove();
+		}
+	}
+
+	/**
+	 * @return the allocation counter of the measurement running on the
+	 *         current thread, or null
+	 */
+	static AtomicLong currentCounter() {
+		return COUNTER.get();
+	}
+
+	private static long allocatedBytes() {
+		if (THREADS instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+
+	static final class Stage {
+
+		private final String name;
+
+		private long nanos;
+
+		private long pixels;
+
+		private long allocatedBytes;
+
+		private Stage(final String name) {
+			this.name = name;
+		}
+
+		String name() {
+			return name;
+		}
+
+		double milliseconds() {
+			return nanos / 1e6;
+		}
+
+		long pixels() {
+			return pixels;
+		}
+
+		long allocatedBytes() {
+			return allocatedBytes;
+		}
+	}
+}
@@ -0,0 +1,341 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.features.FeatureGroup;
+import net.imglib2.roi.labeling.LabelRegion;
+import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Extracts the feature vectors of the labeled pixels of an image.
+ * <p>
+ * The samples are ordered by class, in the order of the class names, and
+ * within a class in the iteration order of its {@link LabelRegion}. The order
+ * only depends on the image and its labeling, so training sets merged from
+ * several images are reproducible, no matter how many threads extracted them,
+ * whether metrics are collected or where the feature stacks are stored.
+ * <p>
+ * In sparse mode, the image is divided into blocks and the features are only
+ * computed for the bounding box of the labeled pixels within each block. The
+ * filters read their neighborhood directly from the whole image, so the
+ * samples are the same as in dense mode, but the cost depends on the size of
+ * the annotation instead of the size of the image.
+ * <p>
+ * If the {@link ClassSampler} limits the number of samples per class, the
+ * pixels of each class are streamed through a reservoir first and only the
+ * kept pixels are sampled, still in the iteration order of their region.
+ * <p>
+ * The features are computed on the image translated to a zero minimum, so
+ * the positions of the labeled pixels are translated by the same offset.
+ * <p>
+ * This replaces {@code Trainer.trainLabeledImage} for any number of threads.
+ * The samples are the ones it extracts, in the same order, but the node also
+ * needs them for sampling, sparse extraction and storing them in the model.
+ */
+final class SampleExtractor {
+
+	/** Edge length of the blocks the labeled pixels are grouped in. */
+	private static final int SPARSE_BLOCK_SIZE = 64;
+
+	private final FeatureGroup features;
+
+	private final String featuresId;
+
+	private final FeatureStackCache cache = FeatureStackCache.getInstance();
+
+	/** The classes of {@link #extract(RandomAccessibleInterval, LabelRegions)}, may be null. */
+	private final List<String> classNames;
+
+	private final ExecutorService pool;
+
+	private final boolean sparse;
+
+	private final ClassSampler sampler;
+
+	private final FeatureStorage storage;
+
+	/** The node the cached feature stacks are released for, may be null. */
+	private final Object cacheOwner;
+
+	SampleExtractor(final FeatureGroup features, final List<String> classNames, final ExecutorService pool,
+			final boolean sparse) {
+		this(features, classNames, pool, sparse, ClassSampler.unlimited(), FeatureStorage.HEAP, null);
+	}
+
+	/**
+	 * An extractor for images whose classes are passed with each image, see
+	 * {@link #extract(RandomAccessibleInterval, LabelRegions, List, RowMetrics)}.
+	 *
+	 * @param cacheOwner the node the cached feature stacks are released for,
+	 *            see {@link FeatureStackCache#release(Object)}
+	 */
+	SampleExtractor(final FeatureGroup features, final ExecutorService pool, final boolean sparse,
+			final ClassSampler sampler, final FeatureStorage storage, final Object cacheOwner) {
+		this(features, null, pool, sparse, sampler, storage, cacheOwner);
+	}
+
+	private SampleExtractor(final FeatureGroup features, final List<String> classNames, final ExecutorService pool,
+			final boolean sparse, final ClassSampler sampler, final FeatureStorage storage, final Object cacheOwner) {
+		this.features = features;
+		this.featuresId = FeatureStackCache.featuresId(features);
+		this.classNames = classNames;
+		this.pool = pool;
+		this.sparse = sparse;
+		this.sampler = sampler;
+		this.storage = storage;
+		this.cacheOwner = cacheOwner;
+	}
+
+	ClassSampler sampler() {
+		return sampler;
+	}
+
+	<L> TrainingSamples extract(final RandomAccessibleInterval<?> image, final LabelRegions<L> labeling)
+			throws Exception {
+		return extract(image, labeling, RowMetrics.disabled());
+	}
+
+	<L> TrainingSamples extract(final RandomAccessibleInterval<?> image, final LabelRegions<L> labeling,
+			final RowMetrics metrics) throws Exception {
+		return extract(image, labeling, classNames, metrics);
+	}
+
+	/**
+	 * Extracts the samples and records the time of the feature computation
+	 * and of the sampling of the labeled pixels.
+	 *
+	 * @param classNames the classes to extract, the labels of the samples are
+	 *            indices into this list
+	 */
+	<L> TrainingSamples extract(final RandomAccessibleInterval<?> image, final LabelRegions<L> labeling,
+			final List<String> classNames, final RowMetrics metrics) throws Exception {
+		final RandomAccessibleInterval<?> zeroMin = Views.zeroMin(image);
+		final RandomAccessible<FloatType> source = FeatureStack.source(zeroMin);
+		final String imageId = cache.isEnabled() ? FeatureStackCache.imageId(zeroMin) : null;
+		final long[] offset = Intervals.minAsLongArray(image);
+		return sparse ? extractSparse(source, imageId, zeroMin, labeling, offset, classNames, metrics)
+				: extractDense(source, imageId, zeroMin, labeling, offset, classNames, metrics);
+	}
+
+	private FeatureStack features(final RandomAccessible<FloatType> source, final String imageId,
+			final Interval interval, final RowMetrics metrics) throws Exception {
+		return metrics.measure(RowMetrics.FEATURES, Intervals.numElements(interval), () -> cache.get(cacheOwner,
+				imageId, featuresId, interval, storage,
+				() -> FeatureStack.compute(features, source, interval, pool, storage, null)));
+	}
+
+	private <L> TrainingSamples extractDense(final RandomAccessible<FloatType> source, final String imageId,
+			final Interval interval, final LabelRegions<L> labeling, final long[] offset,
+			final List<String> classNames, final RowMetrics metrics) throws Exception {
+		final FeatureStack stack = features(source, imageId, interval, metrics);
+		final TrainingSamples samples = metrics.measure(RowMetrics.EXTRACT, 0,
+				() -> sampleDense(stack, labeling, offset, classNames));
+		metrics.addPixels(RowMetrics.EXTRACT, samples.size());
+		return samples;
+	}
+
+	private <L> TrainingSamples sampleDense(final FeatureStack stack, final LabelRegions<L> labeling,
+			final long[] offset, final List<String> classNames) {
+		final TrainingSamples samples = new TrainingSamples(stack.count());
+		final List<RandomAccess<FloatType>> featureAccesses = randomAccesses(stack);
+		final float[] featureVector = new float[stack.count()];
+		for (int classIndex = 0; classIndex < classNames.size(); classIndex++) {
+			final int label = classIndex;
+			visit(labeling, offset, classNames, classIndex, position -> {
+				for (int f = 0; f < featureVector.length; f++) {
+					final RandomAccess<FloatType> access = featureAccesses.get(f);
+					access.setPosition(position);
+					featureVector[f] = access.get().getRealFloat();
+				}
+				samples.add(featureVector, label);
+			});
+		}
+		return samples;
+	}
+
+	/**
+	 * First reserves one sample per sampled pixel, in the same order as
+	 * {@link #extractDense}, and groups the pixels by block. Then the features
+	 * are computed block by block and written to the reserved samples, so only
+	 * the features of a single block are held in memory.
+	 */
+	private <L> TrainingSamples extractSparse(final RandomAccessible<FloatType> source, final String imageId,
+			final Interval interval, final LabelRegions<L> labeling, final long[] offset,
+			final List<String> classNames, final RowMetrics metrics) throws Exception {
+		final TrainingSamples samples = new TrainingSamples(features.count());
+		final Map<Long, Block> blocks = metrics.measure(RowMetrics.EXTRACT, 0,
+				() -> reserve(samples, interval, labeling, offset, classNames));
+		for (final Block block : blocks.values()) {
+			final FeatureStack stack = features(source, imageId, block.boundingBox(), metrics);
+			metrics.measure(RowMetrics.EXTRACT, 0, () -> {
+				block.fill(stack, samples);
+				return null;
+			});
+		}
+		metrics.addPixels(RowMetrics.EXTRACT, samples.size());
+		return samples;
+	}
+
+	private <L> Map<Long, Block> reserve(final TrainingSamples samples, final Interval interval,
+			final LabelRegions<L> labeling, final long[] offset, final List<String> classNames) {
+		final float[] empty = new float[features.count()];
+		final Map<Long, Block> blocks = new TreeMap<>();
+		for (int classIndex = 0; classIndex < classNames.size(); classIndex++) {
+			final int label = classIndex;
+			visit(labeling, offset, classNames, classIndex, position -> {
+				final long key = blockIndex(position, interval);
+				Block block = blocks.get(key);
+				if (block == null) {
+					block = new Block(interval.numDimensions());
+					blocks.put(key, block);
+				}
+				block.add(samples.size(), position);
+				samples.add(empty, label);
+			});
+		}
+		return blocks;
+	}
+
+	/**
+	 * Visits the pixels of the class that are sampled, in the iteration order
+	 * of its region, at their position in the image translated by
+	 * {@code -offset}.
+	 */
+	private <L> void visit(final LabelRegions<L> labeling, final long[] offset, final List<String> classNames,
+			final int classIndex, final PixelVisitor visitor) {
+		final L label = findLabel(labeling, classNames.get(classIndex));
+		if (label == null)
+			return;
+		final LabelRegion<L> region = labeling.getLabelRegion(label);
+		final Cursor<?> cursor = region.cursor();
+		final Point position = new Point(region.numDimensions());
+		if (!sampler.isLimited()) {
+			while (cursor.hasNext()) {
+				cursor.fwd();
+				translate(cursor, offset, position);
+				visitor.visit(position);
+			}
+			return;
+		}
+		final ClassSampler.Reservoir reservoir = sampler.reservoir(classIndex, classNames.size(),
+				region.numDimensions());
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			reservoir.offer(cursor);
+		}
+		reservoir.sort();
+		final Point sampled = new Point(region.numDimensions());
+		for (int i = 0; i < reservoir.size(); i++) {
+			reservoir.localize(i, sampled);
+			translate(sampled, offset, position);
+			visitor.visit(position);
+		}
+	}
+
+	private static void translate(final Localizable source, final long[] offset, final Point target) {
+		for (int d = 0; d < offset.length; d++)
+			target.setPosition(source.getLongPosition(d) - offset[d], d);
+	}
+
+	private static long blockIndex(final Localizable position, final Interval interval) {
+		long index = 0;
+		for (int d = interval.numDimensions() - 1; d >= 0; d--) {
+			final long blocksInDimension = (interval.dimension(d) + SPARSE_BLOCK_SIZE - 1) / SPARSE_BLOCK_SIZE;
+			index = index * blocksInDimension + (position.getLongPosition(d) - interval.min(d)) / SPARSE_BLOCK_SIZE;
+		}
+		return index;
+	}
+
+	private static List<RandomAccess<FloatType>> randomAccesses(final FeatureStack stack) {
+		final List<RandomAccess<FloatType>> accesses = new ArrayList<>(stack.count());
+		for (int i = 0; i < stack.count(); i++)
+			accesses.add(stack.get(i).randomAccess());
+		return accesses;
+	}
+
+	private static <L> L findLabel(final LabelRegions<L> labeling, final String className) {
+		for (final L label : labeling.getExistingLabels())
+			if (label.toString().equals(className))
+				return label;
+		return null;
+	}
+
+	private interface PixelVisitor {
+
+		void visit(Localizable position);
+	}
+
+	/**
+	 * The labeled pixels within one block: their sample indices, positions and
+	 * bounding box.
+	 */
+	private static final class Block {
+
+		private final int n;
+
+		private final long[] min;
+
+		private final long[] max;
+
+		private int[] sampleIndices = new int[16];
+
+		private long[] positions;
+
+		private int size = 0;
+
+		private Block(final int n) {
+			this.n = n;
+			this.min = new long[n];
+			this.max = new long[n];
+			this.positions = new long[16 * n];
+			Arrays.fill(min, Long.MAX_VALUE);
+			Arrays.fill(max, Long.MIN_VALUE);
+		}
+
+		private void add(final int sampleIndex, final Localizable position) {
+			if (size == sampleIndices.length) {
+				sampleIndices = Arrays.copyOf(sampleIndices, 2 * size);
+				positions = Arrays.copyOf(positions, 2 * size * n);
+			}
+			sampleIndices[size] = sampleIndex;
+			for (int d = 0; d < n; d++) {
+				final long x = position.getLongPosition(d);
+				positions[size * n + d] = x;
+				min[d] = Math.min(min[d], x);
+				max[d] = Math.max(max[d], x);
+			}
+			size++;
+		}
+
+		private Interval boundingBox() {
+			return new FinalInterval(min, max);
+		}
+
+		private void fill(final FeatureStack stack, final TrainingSamples samples) {
+			final List<RandomAccess<FloatType>> featureAccesses = randomAccesses(stack);
+			for (int i = 0; i < size; i++)
+				for (int f = 0; f < featureAccesses.size(); f++) {
+					final RandomAccess<FloatType> access = featureAccesses.get(f);
+					for (int d = 0; d < n; d++)
+						access.setPosition(positions[i * n + d] - min[d], d);
+					samples.set(sampleIndices[i], f, access.get().getRealFloat());
+				}
+		}
+	}
+}
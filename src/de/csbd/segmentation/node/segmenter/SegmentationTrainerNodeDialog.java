@@ -50,8 +50,11 @@ package de.csbd.segmentation.node.segmenter;
 
 import org.knime.core.data.image.ImageValue;
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
 import org.knime.core.node.defaultnodesettings.DialogComponentColumnNameSelection;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
 import org.knime.core.node.defaultnodesettings.DialogComponentString;
+import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
 import org.knime.knip.base.data.img.ImgPlusValue;
 import org.knime.knip.base.data.labeling.LabelingValue;
 
@@ -71,6 +74,44 @@ public class SegmentationTrainerNodeDialog extends DefaultNodeSettingsPane {
 				"Labeling", 0, ImgPlusValue.class));
 		addDialogComponent(new DialogComponentColumnNameSelection(SegmenterNodeModel.createImageColumnSelection(),
 				"Image", 0, LabelingValue.class));
+		addDialogComponent(new DialogComponentNumber(SegmentationTrainerNodeModel.createNumberOfThreadsModel(),
+				"Number of threads", 1));
+		addDialogComponent(new DialogComponentBoolean(SegmentationTrainerNodeModel.createSparseTrainingModel(),
+				"Compute features only around labeled pixels"));
+		addDialogComponent(new DialogComponentStringSelection(SegmenterNodeModel.createFeatureStorageModel(),
+				"Feature storage", FeatureStorage.labels()));
+		addDialogComponent(new DialogComponentStringSelection(
+				SegmentationTrainerNodeModel.createTrainingSampleStorageModel(), "Training samples",
+				SegmentationTrainerNodeModel.STORAGE_OPTIONS));
+		addDialogComponent(new DialogComponentBoolean(SegmentationTrainerNodeModel.createCompressModelModel(),
+				"Compress model"));
+		addDialogComponent(new DialogComponentBoolean(SegmentationTrainerNodeModel.createColumnarTrainingModel(),
+				"Train forest on float columns"));
+		addDialogComponent(new DialogComponentBoolean(SegmenterNodeModel.createCollectMetricsModel(),
+				"Collect metrics"));
+		createNewGroup("Random forest");
+		addDialogComponent(new DialogComponentNumber(SegmentationTrainerNodeModel.createNumberOfTreesModel(),
+				"Number of trees", 10));
+		addDialogComponent(new DialogComponentNumber(SegmentationTrainerNodeModel.createMaxDepthModel(),
+				"Maximum depth (0 = unlimited)", 1));
+		addDialogComponent(new DialogComponentNumber(SegmentationTrainerNodeModel.createFeaturesPerSplitModel(),
+				"Features per split (0 = log2(features) + 1)", 1));
+		addDialogComponent(new DialogComponentNumber(SegmentationTrainerNodeModel.createTrainingThreadsModel(),
+				"Training threads (0 = all processors)", 1));
+		addDialogComponent(new DialogComponentNumber(SegmentationTrainerNodeModel.createSeedModel(), "Seed", 1));
+		closeCurrentGroup();
+		createNewGroup("Feature pruning");
+		addDialogComponent(new DialogComponentBoolean(SegmentationTrainerNodeModel.createPruneFeaturesModel(),
+				"Keep only the most important features"));
+		addDialogComponent(new DialogComponentNumber(SegmentationTrainerNodeModel.createPrunedFeatureCountModel(),
+				"Number of features", 1));
+		closeCurrentGroup();
+		createNewGroup("Sampling");
+		addDialogComponent(new DialogComponentNumber(SegmentationTrainerNodeModel.createMaxSamplesModel(),
+				"Maximum samples (0 = all)", 10000));
+		addDialogComponent(new DialogComponentNumber(SegmentationTrainerNodeModel.createMaxSampleMemoryModel(),
+				"Maximum memory (MB, 0 = unlimited)", 64));
+		closeCurrentGroup();
 		addDialogComponent(new FeatureSettingsDialogComponent(SegmentationTrainerNodeModel.createFeatureSettingsModel()));
 	}
 }
@@ -50,10 +50,14 @@ package de.csbd.segmentation.node.segmenter;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 
+import org.knime.core.data.DataCell;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.node.BufferedDataTable;
@@ -66,25 +70,32 @@ import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.defaultnodesettings.SettingsModel;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.node.port.PortObject;
 import org.knime.core.node.port.PortObjectSpec;
 import org.knime.core.node.port.PortType;
+import org.knime.core.node.streamable.BufferedDataTableRowOutput;
+import org.knime.core.node.streamable.RowOutput;
 import org.knime.knip.base.data.img.ImgPlusCell;
 import org.knime.knip.base.data.img.ImgPlusValue;
-import org.knime.knip.base.data.labeling.LabelingCell;
 import org.knime.knip.base.data.labeling.LabelingValue;
 import org.knime.knip.base.node.NodeUtils;
 import org.knime.knip.core.KNIPGateway;
 import org.scijava.log.LogService;
 
+import hr.irb.fastRandomForest.FastRandomForest;
 import net.imagej.ImgPlus;
 import net.imagej.ops.OpService;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.features.FeatureGroup;
 import net.imglib2.algorithm.features.classification.Classifier;
 import net.imglib2.algorithm.features.classification.Trainer;
 import net.imglib2.algorithm.features.gson.FeaturesGson;
 import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.util.Intervals;
 
 /**
  * MinMaxRadiusNodeModel.
@@ -99,9 +110,41 @@ public class SegmentationTrainerNodeModel extends NodeModel {
 	private SettingsModelString labelingColumn = createLabelingColumnSelection();
 	private SettingsModelString imageColumn = createImageColumnSelection();
 	private SettingsModelString featureSettingsAsJson = createFeatureSettingsModel();
+	private SettingsModelIntegerBounded numberOfThreads = createNumberOfThreadsModel();
+	private SettingsModelBoolean sparseTraining = createSparseTrainingModel();
+	private SettingsModelString featureStorage = SegmenterNodeModel.createFeatureStorageModel();
+	private SettingsModelString trainingSampleStorage = createTrainingSampleStorageModel();
+	private SettingsModelBoolean collectMetrics = SegmenterNodeModel.createCollectMetricsModel();
+	private SettingsModelBoolean compressModel = createCompressModelModel();
+	private SettingsModelBoolean columnarTraining = createColumnarTrainingModel();
+	private SettingsModelIntegerBounded maxSamples = createMaxSamplesModel();
+	private SettingsModelIntegerBounded maxSampleMemory = createMaxSampleMemoryModel();
+	private SettingsModelIntegerBounded seed = createSeedModel();
+	private SettingsModelIntegerBounded numberOfTrees = createNumberOfTreesModel();
+	private SettingsModelIntegerBounded maxDepth = createMaxDepthModel();
+	private SettingsModelIntegerBounded featuresPerSplit = createFeaturesPerSplitModel();
+	private SettingsModelIntegerBounded trainingThreads = createTrainingThreadsModel();
+	private SettingsModelBoolean pruneFeatures = createPruneFeaturesModel();
+	private SettingsModelIntegerBounded prunedFeatureCount = createPrunedFeatureCountModel();
 	
 	private List<SettingsModel> settingsModels = Arrays.asList(labelingColumn, imageColumn, featureSettingsAsJson);
 
+	private OptionalSettings optionalSettings = new OptionalSettings(numberOfThreads, sparseTraining,
+			trainingSampleStorage, collectMetrics, compressModel, columnarTraining, maxSamples, maxSampleMemory, seed,
+			numberOfTrees, maxDepth, featuresPerSplit, trainingThreads, pruneFeatures, prunedFeatureCount,
+			featureStorage);
+
+	static final String STORAGE_NONE = "Do not store";
+
+	static final String STORAGE_UNCOMPRESSED = "Store";
+
+	static final String STORAGE_COMPRESSED = "Store compressed";
+
+	static final String[] STORAGE_OPTIONS = { STORAGE_NONE, STORAGE_UNCOMPRESSED, STORAGE_COMPRESSED };
+
+	/** Fraction of the samples the forests are validated on when features are pruned. */
+	private static final double VALIDATION_FRACTION = 0.2;
+
 	/**
 	 * Create a settings model for the column selection component.
 	 * 
@@ -114,6 +157,115 @@ public class SegmentationTrainerNodeModel extends NodeModel {
 	protected static SettingsModelString createImageColumnSelection() {
 		return new SettingsModelString("ImageColumn", "");
 	}
+
+	/**
+	 * Number of threads used to extract the training samples. With more than
+	 * one thread, several rows are processed concurrently.
+	 */
+	protected static SettingsModelIntegerBounded createNumberOfThreadsModel() {
+		return new SettingsModelIntegerBounded("NumberOfThreads", 1, 1, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * If true, the features are only computed around the labeled pixels
+	 * instead of for the whole image.
+	 */
+	protected static SettingsModelBoolean createSparseTrainingModel() {
+		return new SettingsModelBoolean("SparseTraining", false);
+	}
+
+	/**
+	 * Whether the training samples are stored in the model, which allows to
+	 * train again without extracting the features of unchanged rows. Off by
+	 * default, because the samples are usually much larger than the forest.
+	 */
+	protected static SettingsModelString createTrainingSampleStorageModel() {
+		return new SettingsModelString("TrainingSampleStorage", STORAGE_NONE);
+	}
+
+	/**
+	 * Whether the trees of the random forest are deflated when the model is
+	 * saved. Off by default, because a compressed forest is inflated into a
+	 * copy of its own when it is loaded instead of being memory-mapped.
+	 */
+	protected static SettingsModelBoolean createCompressModelModel() {
+		return new SettingsModelBoolean("CompressModel", false);
+	}
+
+	/**
+	 * If true, the random forest is trained directly on the float columns of
+	 * the training samples by a {@link ForestTrainer}, instead of by Weka on a
+	 * copy of the samples. Off by default, so the forest is trained by Weka
+	 * unless asked otherwise.
+	 */
+	protected static SettingsModelBoolean createColumnarTrainingModel() {
+		return new SettingsModelBoolean("ColumnarTraining", false);
+	}
+
+	/**
+	 * Maximal number of training samples, split evenly between the classes.
+	 * Zero uses all labeled pixels.
+	 */
+	protected static SettingsModelIntegerBounded createMaxSamplesModel() {
+		return new SettingsModelIntegerBounded("MaxSamples", 0, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Maximal memory of the training samples in MB, split evenly between the
+	 * classes. Zero for no limit.
+	 */
+	protected static SettingsModelIntegerBounded createMaxSampleMemoryModel() {
+		return new SettingsModelIntegerBounded("MaxSampleMemory", 0, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Seed of the random numbers, which makes the training reproducible.
+	 */
+	protected static SettingsModelIntegerBounded createSeedModel() {
+		return new SettingsModelIntegerBounded("Seed", 1, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	protected static SettingsModelIntegerBounded createNumberOfTreesModel() {
+		return new SettingsModelIntegerBounded("NumberOfTrees", 200, 1, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Maximal depth of the trees, zero for unlimited.
+	 */
+	protected static SettingsModelIntegerBounded createMaxDepthModel() {
+		return new SettingsModelIntegerBounded("MaxDepth", 0, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Number of randomly drawn features tried per split, zero for
+	 * {@code log2(features) + 1}.
+	 */
+	protected static SettingsModelIntegerBounded createFeaturesPerSplitModel() {
+		return new SettingsModelIntegerBounded("FeaturesPerSplit", 2, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Number of threads the trees are built with, zero for the number of
+	 * processors.
+	 */
+	protected static SettingsModelIntegerBounded createTrainingThreadsModel() {
+		return new SettingsModelIntegerBounded("TrainingThreads", 0, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * If true, the model only keeps the features the trained forest uses
+	 * most, see {@link FeaturePruning}.
+	 */
+	protected static SettingsModelBoolean createPruneFeaturesModel() {
+		return new SettingsModelBoolean("PruneFeatures", false);
+	}
+
+	/**
+	 * Number of feature images kept when pruning.
+	 */
+	protected static SettingsModelIntegerBounded createPrunedFeatureCountModel() {
+		return new SettingsModelIntegerBounded("PrunedFeatureCount", 10, 1, Integer.MAX_VALUE);
+	}
 	/**
 	 * KNIP logger instance.
 	 */
@@ -123,7 +275,8 @@ public class SegmentationTrainerNodeModel extends NodeModel {
 	 * Constructor of the MinMaxRadiusNodeModel.
 	 */
 	protected SegmentationTrainerNodeModel() {
-		super(new PortType[] { BufferedDataTable.TYPE }, new PortType[] { WekaSegmenterPortObject.TYPE });
+		super(new PortType[] { BufferedDataTable.TYPE, WekaSegmenterPortObject.TYPE_OPTIONAL },
+				new PortType[] { WekaSegmenterPortObject.TYPE, BufferedDataTable.TYPE });
 	}
 
 	/**
@@ -138,7 +291,7 @@ public class SegmentationTrainerNodeModel extends NodeModel {
 		NodeUtils.autoColumnSelection(spec, imageColumn, ImgPlusValue.class, this.getClass());
 
 		// If everything looks fine, create an output table spec.
-		return new PortObjectSpec[] { createPortObjectSpec() };
+		return new PortObjectSpec[] { createPortObjectSpec(), MetricsTable.createSpec() };
 	}
 
 	/**
@@ -151,57 +304,263 @@ public class SegmentationTrainerNodeModel extends NodeModel {
 		
 		// The datatable passed by the first dataport.
 		final BufferedDataTable data = (BufferedDataTable) inData[0];
+		// The model of a previous training run, if connected.
+		final WekaSegmenterPortObject previous = (WekaSegmenterPortObject) inData[1];
 
-		PortObject portObject = execute(data, exec);
-		return new PortObject[] { portObject };
+		final BufferedDataTableRowOutput metricsOutput = new BufferedDataTableRowOutput(
+				exec.createDataContainer(MetricsTable.createSpec()));
+		final MetricsTable metrics = new MetricsTable();
+		PortObject portObject = execute(data, previous == null ? null : previous.getTrainingData(), metricsOutput,
+				metrics, exec);
+		metricsOutput.close();
+		if (collectMetrics.getBooleanValue())
+			metrics.pushFlowVariables(this::pushFlowVariableDouble);
+		return new PortObject[] { portObject, metricsOutput.getDataTable() };
 	}
 
-	private <L> PortObject execute(final BufferedDataTable data, final ExecutionContext exec) throws IOException, CanceledExecutionException {
+	/**
+	 * Reads each row exactly once. The classes are collected while the rows
+	 * are streamed: each row is extracted with its own classes, and its labels
+	 * are mapped to the classes of all rows when the row is added, in row
+	 * order, so the class indices do not depend on the number of threads.
+	 */
+	private PortObject execute(final BufferedDataTable data, TrainingData previous,
+			final RowOutput metricsOutput, final MetricsTable metrics, final ExecutionContext exec)
+			throws Exception {
 		// Variables to compute progress.
 		final long numRows = data.size();
-		long currentRow = 0;
+		final long[] currentRow = { 0 };
 
-		@SuppressWarnings("unchecked")
-		final LabelingCell<L> labelingCell = (LabelingCell<L>) data.iterator().next().getCell(data.getSpec().findColumnIndex(labelingColumn.getStringValue()));
-		final List<String> labels = new LabelRegions<>(labelingCell.getLabeling()).getExistingLabels().stream().map(Object::toString).collect(Collectors.toList());
-		final Classifier classifier = initClassifier(labels);
-		Trainer trainer = Trainer.of(classifier);
-		for (final DataRow row : data) {
-			exec.checkCanceled();
-			executeRow(exec, data, trainer, row);
-			exec.setProgress(currentRow++ / numRows);
+		final FeatureGroup features = initFeatureGroup();
+		final String featuresId = FeatureStackCache.featuresId(features);
+		if (previous != null && !previous.featuresId().equals(featuresId)) {
+			LOGGER.warn("The feature settings differ from the previous model, all training samples are extracted again.");
+			previous = null;
+		}
+		final int imageColumnIndex = data.getSpec().findColumnIndex(imageColumn.getStringValue());
+		final int labelingColumnIndex = data.getSpec().findColumnIndex(labelingColumn.getStringValue());
+
+		// Samples are merged in row order, which makes the training set
+		// independent of the number of threads. The classes are numbered in
+		// the order they first occur, reused rows included, so classes of the
+		// previous model that no row contains anymore are dropped.
+		final TrainingData trainingData = new TrainingData(featuresId, Collections.emptyList(), features.count(),
+				STORAGE_COMPRESSED.equals(trainingSampleStorage.getStringValue()));
+		final TrainingData reusable = previous;
+		final ClassSampler sampler = new ClassSampler(maxSamples.getIntValue(), maxSampleMemory.getIntValue(),
+				features.count(), seed.getIntValue());
+		final ClassSampler.SampleReservoirs reservoirs = sampler.reservoirs();
+		final int threads = numberOfThreads.getIntValue();
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			final SampleExtractor extractor = new SampleExtractor(features, pool, sparseTraining.getBooleanValue(),
+					sampler, FeatureStorage.fromLabel(featureStorage.getStringValue()), this);
+			if (threads <= 1) {
+				for (final DataRow row : data) {
+					exec.checkCanceled();
+					addSamples(trainingData, reservoirs, metricsOutput, metrics, row,
+							extractRow(extractor, reusable, row, imageColumnIndex, labelingColumnIndex));
+					exec.setProgress((double) ++currentRow[0] / numRows);
+				}
+			} else {
+				new OrderedRowProcessor<RowSamples>(pool, 2 * threads, exec).process(data,
+						row -> extractRow(extractor, reusable, row, imageColumnIndex, labelingColumnIndex),
+						(row, rowSamples) -> {
+							addSamples(trainingData, reservoirs, metricsOutput, metrics, row, rowSamples);
+							exec.setProgress((double) ++currentRow[0] / numRows);
+						});
+			}
+		} finally {
+			pool.shutdownNow();
 		}
 
-		return new WekaSegmenterPortObject(classifier, createPortObjectSpec());
+		final List<String> labels = new ArrayList<>(trainingData.classNames());
+		if (labels.isEmpty())
+			throw new IllegalArgumentException("The labelings contain no labels.");
+		// A random forest can not be extended by further samples, so it is
+		// trained again on the reused and the newly extracted samples.
+		final RowMetrics trainMetrics = collectMetrics.getBooleanValue() ? new RowMetrics() : RowMetrics.disabled();
+		final TrainingSamples samples = trainMetrics.measure(RowMetrics.EXTRACT, 0, reservoirs::samples);
+		final Classifier classifier = trainMetrics.measure(RowMetrics.TRAIN, samples.size(),
+				() -> trainClassifier(labels, features, samples));
+		if (collectMetrics.getBooleanValue())
+			metrics.push(metricsOutput, "", trainMetrics);
+		final boolean store = !STORAGE_NONE.equals(trainingSampleStorage.getStringValue());
+		return new WekaSegmenterPortObject(classifier, store ? trainingData : null, compressModel.getBooleanValue(),
+				createPortObjectSpec());
 	}
 	
 	private static NodeLogger logger = NodeLogger.getLogger(SegmentationTrainerNodeModel.class);
 
-	private Classifier initClassifier(List<String> classNames) {
+	private Classifier trainClassifier(List<String> classNames, FeatureGroup features, TrainingSamples samples) throws Exception {
 		OpService ops = KNIPGateway.ops();
-		FeatureGroup features = initFeatureGroup();
-		return new Classifier(ops, classNames, features, Trainer.initRandomForest());
+		if (pruneFeatures.getBooleanValue()) {
+			final Classifier pruned = trainPruned(ops, classNames, features, samples);
+			if (pruned != null)
+				return pruned;
+		}
+		return new Classifier(ops, classNames, features, trainForest(classNames, features, samples));
+	}
+
+	/**
+	 * Trains a forest on a part of the samples, keeps the features it splits
+	 * on most often and trains the final forest on those features only. The
+	 * accuracies of both forests on the remaining samples are pushed as flow
+	 * variables.
+	 *
+	 * @return null if no feature is pruned
+	 */
+	private Classifier trainPruned(final OpService ops, final List<String> classNames, final FeatureGroup features,
+			final TrainingSamples samples) throws Exception {
+		final TrainingSamples[] split = FeaturePruning.split(samples, VALIDATION_FRACTION, seed.getIntValue());
+		final FlatForest full = FlatForest.of(trainForest(classNames, features, split[0]));
+		if (full == null) {
+			LOGGER.warn("Features can only be pruned for random forests.");
+			return null;
+		}
+		final FeaturePruning pruning = FeaturePruning.select(features, full, prunedFeatureCount.getIntValue());
+		if (!pruning.prunes()) {
+			LOGGER.info("All features are used, none is pruned.");
+			return null;
+		}
+		final FeatureGroup prunedFeatures = pruning.prunedFeatures();
+		final FlatForest pruned = FlatForest
+				.of(trainForest(classNames, prunedFeatures, pruning.prune(split[0])));
+		final double fullAccuracy = FeaturePruning.accuracy(full, split[1]);
+		final double prunedAccuracy = FeaturePruning.accuracy(pruned, pruning.prune(split[1]));
+		LOGGER.info("Pruned features from " + features.count() + " to " + pruning.prunedCount()
+				+ ", validation accuracy " + fullAccuracy + " before and " + prunedAccuracy + " after pruning.");
+		pushFlowVariableInt("Feature count", pruning.prunedCount());
+		pushFlowVariableDouble("Validation accuracy (all features)", fullAccuracy);
+		pushFlowVariableDouble("Validation accuracy (pruned features)", prunedAccuracy);
+		return new Classifier(ops, classNames, prunedFeatures,
+				trainForest(classNames, prunedFeatures, pruning.prune(samples)));
+	}
+
+	private weka.classifiers.Classifier trainForest(final List<String> classNames, final FeatureGroup features,
+			final TrainingSamples samples) throws Exception {
+		weka.classifiers.Classifier forest = Trainer.initRandomForest();
+		final int threads = trainingThreads.getIntValue() > 0 ? trainingThreads.getIntValue()
+				: Runtime.getRuntime().availableProcessors();
+		if (forest instanceof FastRandomForest)
+			configureForest((FastRandomForest) forest, threads);
+		if (columnarTraining.getBooleanValue() && forest instanceof FastRandomForest) {
+			final ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				return ForestTrainer.like((FastRandomForest) forest).train(samples, classNames.size(), pool);
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+		forest.buildClassifier(samples.toInstances(StackClassifier.header(features.attributeLabels(), classNames)));
+		return forest;
 	}
 	
+	/**
+	 * Applies the configured forest settings. Each tree gets its own seed
+	 * derived from the configured one, so the forest does not depend on the
+	 * number of threads.
+	 */
+	private void configureForest(final FastRandomForest forest, final int threads) {
+		forest.setNumTrees(numberOfTrees.getIntValue());
+		forest.setMaxDepth(maxDepth.getIntValue());
+		forest.setNumFeatures(featuresPerSplit.getIntValue());
+		forest.setSeed(seed.getIntValue());
+		forest.setNumThreads(threads);
+	}
+
 	private FeatureGroup initFeatureGroup() {
 		String stringValue = featureSettingsAsJson.getStringValue();
 		return FeaturesGson.fromJson(stringValue, KNIPGateway.ops());
 	}
 
-	private <T> void executeRow(final ExecutionContext exec, final BufferedDataTable data,
-			final Trainer trainer, final DataRow row) throws IOException {
-
-		@SuppressWarnings("unchecked")
-		final ImgPlusCell<?> imageCell = (ImgPlusCell<?>) row.getCell(data.getSpec().findColumnIndex(imageColumn.getStringValue()));
+	/**
+	 * Extracts the training samples of the given row, or takes them from the
+	 * previous training data if the row is unchanged. This method is called
+	 * concurrently from several threads if more than one thread is configured.
+	 *
+	 * @param previous the training data of the previous model, may be null
+	 * @return the samples, or null if the image or the labeling is missing
+	 */
+	private RowSamples extractRow(final SampleExtractor extractor, final TrainingData previous, final DataRow row,
+			final int imageColumnIndex, final int labelingColumnIndex) throws Exception {
+		final DataCell imageCell = row.getCell(imageColumnIndex);
+		final DataCell labelingCell = row.getCell(labelingColumnIndex);
+		if (imageCell.isMissing() || labelingCell.isMissing())
+			return null;
+		final RowMetrics metrics = collectMetrics.getBooleanValue() ? new RowMetrics() : RowMetrics.disabled();
+		final ImgPlus<?> image = metrics.measure(RowMetrics.READ, 0, () -> ((ImgPlusValue<?>) imageCell).getImgPlus());
 		@SuppressWarnings("unchecked")
-		final LabelingCell<String> labelingCell = (LabelingCell<String>) row.getCell(data.getSpec().findColumnIndex(labelingColumn.getStringValue()));
+		final RandomAccessibleInterval<LabelingType<String>> labeling = metrics.measure(RowMetrics.READ, 0,
+				() -> ((LabelingValue<String>) labelingCell).getLabeling());
+		metrics.addPixels(RowMetrics.READ, Intervals.numElements(image));
+		final String fingerprint = metrics.measure(RowMetrics.FINGERPRINT, Intervals.numElements(image),
+				() -> TrainingData.fingerprint(row.getKey().getString(), image, labeling)
+						+ extractor.sampler().id());
+		final TrainingSamples reused = previous == null ? null : previous.get(fingerprint);
+		if (reused != null)
+			return new RowSamples(fingerprint, reused, previous.classNames(), metrics);
+		final LabelRegions<String> regions = new LabelRegions<>(labeling);
+		final List<String> classNames = regions.getExistingLabels().stream().map(Object::toString).distinct()
+				.collect(Collectors.toList());
+		return new RowSamples(fingerprint, extractor.extract(image, regions, classNames, metrics), classNames,
+				metrics);
+	}
 
-		if (imageCell.isMissing() || labelingCell.isMissing()) {
+	/**
+	 * Adds the samples of a row to the reservoirs of all rows, and keeps them
+	 * in the training data only if they are stored in the model. Otherwise
+	 * they are freed once the reservoirs have taken their share. Only the
+	 * classes the samples contain are added to the training data.
+	 */
+	private void addSamples(final TrainingData trainingData, final ClassSampler.SampleReservoirs reservoirs,
+			final RowOutput metricsOutput, final MetricsTable metrics, final DataRow row,
+			final RowSamples rowSamples) throws InterruptedException {
+		if (rowSamples == null) {
 			LOGGER.warn("Missing cell in row " + row.getKey().getString());
-		} else {
-			final ImgPlus<?> image = imageCell.getImgPlus();
-			final LabelRegions<String> labeling = new LabelRegions<>(labelingCell.getLabeling());
-			trainer.trainLabeledImage(image, labeling);
+			return;
+		}
+		// Reused samples belong to the previous model, so they are relabeled
+		// without modifying them.
+		final int[] classIndices = new int[rowSamples.classNames.size()];
+		Arrays.fill(classIndices, -1);
+		for (int i = 0; i < rowSamples.samples.size(); i++) {
+			final int label = rowSamples.samples.label(i);
+			if (classIndices[label] < 0)
+				classIndices[label] = trainingData.classIndex(rowSamples.classNames.get(label));
+		}
+		final TrainingSamples samples = rowSamples.samples.relabeled(classIndices);
+		reservoirs.add(samples);
+		if (!STORAGE_NONE.equals(trainingSampleStorage.getStringValue()))
+			trainingData.put(rowSamples.fingerprint, samples);
+		if (collectMetrics.getBooleanValue())
+			metrics.push(metricsOutput, row.getKey().getString(), rowSamples.metrics);
+	}
+
+	/**
+	 * The samples of a row together with the fingerprint and the metrics of
+	 * the row.
+	 */
+	private static final class RowSamples {
+
+		private final String fingerprint;
+
+		private final TrainingSamples samples;
+
+		/**
+		 * The classes the labels of the samples refer to, those of the
+		 * previous model if the samples were reused.
+		 */
+		private final List<String> classNames;
+
+		private final RowMetrics metrics;
+
+		private RowSamples(final String fingerprint, final TrainingSamples samples, final List<String> classNames,
+				final RowMetrics metrics) {
+			this.fingerprint = fingerprint;
+			this.samples = samples;
+			this.classNames = classNames;
+			this.metrics = metrics;
 		}
 	}
 
@@ -221,6 +580,7 @@ public class SegmentationTrainerNodeModel extends NodeModel {
 	protected void saveSettingsTo(NodeSettingsWO settings) {
 		for(SettingsModel model : settingsModels)
 			model.saveSettingsTo(settings);
+		optionalSettings.saveSettingsTo(settings);
 	}
 
 	/**
@@ -230,6 +590,7 @@ public class SegmentationTrainerNodeModel extends NodeModel {
 	protected void validateSettings(NodeSettingsRO settings) throws InvalidSettingsException {
 		for(SettingsModel model : settingsModels)
 			model.validateSettings(settings);
+		optionalSettings.validateSettings(settings);
 	}
 
 	/**
@@ -239,6 +600,7 @@ public class SegmentationTrainerNodeModel extends NodeModel {
 	protected void loadValidatedSettingsFrom(NodeSettingsRO settings) throws InvalidSettingsException {
 		for(SettingsModel model : settingsModels)
 			model.loadSettingsFrom(settings);
+		optionalSettings.loadSettingsFrom(settings);
 	}
 
 	/**
@@ -264,7 +626,18 @@ public class SegmentationTrainerNodeModel extends NodeModel {
 	 */
 	@Override
 	protected void reset() {
-		// Ex.: Models built during execution.
+		// The cached features of the previous execution are not needed
+		// anymore, and spilled ones occupy temporary files. The entries
+		// other nodes used are kept.
+		FeatureStackCache.getInstance().release(this);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void onDispose() {
+		FeatureStackCache.getInstance().release(this);
 	}
 
 	public static SettingsModelString createFeatureSettingsModel() {
@@ -50,7 +50,10 @@ package de.csbd.segmentation.node.segmenter;
 
 import org.knime.core.data.image.ImageValue;
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
 import org.knime.core.node.defaultnodesettings.DialogComponentColumnNameSelection;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
+import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
 import org.knime.knip.base.data.img.ImgPlusValue;
 import org.knime.knip.base.data.labeling.LabelingValue;
 
@@ -70,5 +73,31 @@ public class SegmenterNodeDialog<T extends RealType<T>> extends DefaultNodeSetti
 				"Labeling", 0, ImgPlusValue.class));
 		addDialogComponent(new DialogComponentColumnNameSelection(SegmenterNodeModel.createImageColumnSelection(),
 				"Image", 0, LabelingValue.class));
+		addDialogComponent(new DialogComponentNumber(SegmenterNodeModel.createNumberOfThreadsModel(),
+				"Number of threads", 1));
+		addDialogComponent(new DialogComponentNumber(SegmenterNodeModel.createTileSizeModel(),
+				"Tile size (0 = whole image)", 64));
+		addDialogComponent(new DialogComponentStringSelection(SegmenterNodeModel.createLabelTypeModel(),
+				"Label type", LabelType.labels()));
+		addDialogComponent(new DialogComponentStringSelection(SegmenterNodeModel.createFeatureStorageModel(),
+				"Feature storage", FeatureStorage.labels()));
+		createNewGroup("Probabilities");
+		addDialogComponent(new DialogComponentBoolean(SegmenterNodeModel.createOutputProbabilitiesModel(),
+				"Append class probabilities"));
+		addDialogComponent(new DialogComponentStringSelection(SegmenterNodeModel.createProbabilityPrecisionModel(),
+				"Precision", ProbabilityPrecision.labels()));
+		addDialogComponent(new DialogComponentNumber(SegmenterNodeModel.createTopClassesModel(),
+				"Most likely classes (0 = all)", 1));
+		closeCurrentGroup();
+		createNewGroup("Pyramid");
+		addDialogComponent(new DialogComponentBoolean(SegmenterNodeModel.createPyramidModel(),
+				"Refine uncertain blocks of a coarse segmentation"));
+		addDialogComponent(new DialogComponentNumber(SegmenterNodeModel.createPyramidFactorModel(),
+				"Downsampling factor", 1));
+		addDialogComponent(new DialogComponentNumber(SegmenterNodeModel.createPyramidConfidenceModel(),
+				"Minimum confidence (%)", 5));
+		closeCurrentGroup();
+		addDialogComponent(new DialogComponentBoolean(SegmenterNodeModel.createCollectMetricsModel(),
+				"Collect metrics"));
 	}
 }
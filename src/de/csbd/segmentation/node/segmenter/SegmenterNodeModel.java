@@ -50,14 +50,19 @@ package de.csbd.segmentation.node.segmenter;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
+import org.knime.core.data.DataCell;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.DataType;
 import org.knime.core.data.MissingCell;
 import org.knime.core.data.def.DefaultRow;
-import org.knime.core.node.BufferedDataContainer;
 import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.CanceledExecutionException;
 import org.knime.core.node.ExecutionContext;
@@ -67,20 +72,39 @@ import org.knime.core.node.NodeLogger;
 import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModel;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.node.port.PortObject;
 import org.knime.core.node.port.PortObjectSpec;
 import org.knime.core.node.port.PortType;
+import org.knime.core.node.streamable.BufferedDataTableRowOutput;
+import org.knime.core.node.streamable.DataTableRowInput;
+import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortObjectInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
 import org.knime.knip.base.data.img.ImgPlusCell;
 import org.knime.knip.base.data.img.ImgPlusCellFactory;
 import org.knime.knip.base.data.img.ImgPlusValue;
 import org.knime.knip.base.data.labeling.LabelingCell;
+import org.knime.knip.base.data.labeling.LabelingCellFactory;
 import org.knime.knip.base.data.labeling.LabelingValue;
 import org.knime.knip.base.node.NodeUtils;
 import org.knime.knip.core.KNIPGateway;
+import org.knime.knip.core.awt.labelingcolortable.DefaultLabelingColorTable;
+import org.knime.knip.core.data.img.DefaultLabelingMetadata;
 import org.scijava.log.LogService;
 
 import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
 import net.imagej.ops.OpService;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
@@ -93,6 +117,7 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.ByteType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.algorithm.features.Features;
 import net.imglib2.algorithm.features.GlobalSettings;
 import net.imglib2.algorithm.features.GrayFeatureGroup;
@@ -113,7 +138,23 @@ public class SegmenterNodeModel<T extends RealType<T>> extends NodeModel {
 	 */
 	private SettingsModelString labelingColumn = createLabelingColumnSelection();
 	private SettingsModelString imageColumn = createImageColumnSelection();
-	
+	private SettingsModelIntegerBounded numberOfThreads = createNumberOfThreadsModel();
+	private SettingsModelIntegerBounded tileSize = createTileSizeModel();
+	private SettingsModelString labelType = createLabelTypeModel();
+	private SettingsModelString featureStorage = createFeatureStorageModel();
+	private SettingsModelBoolean outputProbabilities = createOutputProbabilitiesModel();
+	private SettingsModelString probabilityPrecision = createProbabilityPrecisionModel();
+	private SettingsModelIntegerBounded topClasses = createTopClassesModel();
+	private SettingsModelBoolean collectMetrics = createCollectMetricsModel();
+	private SettingsModelBoolean pyramid = createPyramidModel();
+	private SettingsModelIntegerBounded pyramidFactor = createPyramidFactorModel();
+	private SettingsModelIntegerBounded pyramidConfidence = createPyramidConfidenceModel();
+
+	private List<SettingsModel> settingsModels = Arrays.asList(labelingColumn, imageColumn);
+
+	private OptionalSettings optionalSettings = new OptionalSettings(numberOfThreads, tileSize,
+			outputProbabilities, probabilityPrecision, topClasses, collectMetrics, labelType, featureStorage, pyramid,
+			pyramidFactor, pyramidConfidence);
 
 	/**
 	 * Create a settings model for the column selection component.
@@ -127,6 +168,95 @@ public class SegmenterNodeModel<T extends RealType<T>> extends NodeModel {
 	protected static SettingsModelString createImageColumnSelection() {
 		return new SettingsModelString("ImageColumn", "");
 	}
+
+	/**
+	 * Number of threads used for segmentation. With more than one thread,
+	 * several rows are segmented concurrently, and the features and pixels of
+	 * each image are spread over the same threads.
+	 */
+	protected static SettingsModelIntegerBounded createNumberOfThreadsModel() {
+		return new SettingsModelIntegerBounded("NumberOfThreads", 1, 1, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Edge length of the blocks an image is segmented in. Zero means the whole
+	 * image is segmented at once.
+	 */
+	protected static SettingsModelIntegerBounded createTileSizeModel() {
+		return new SettingsModelIntegerBounded("TileSize", 0, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Pixel type of the label image, see {@link LabelType}.
+	 */
+	protected static SettingsModelString createLabelTypeModel() {
+		return new SettingsModelString("LabelType", LabelType.BYTE.toString());
+	}
+
+	/**
+	 * Where the feature images are stored, see {@link FeatureStorage}. Shared
+	 * with the trainer node.
+	 */
+	protected static SettingsModelString createFeatureStorageModel() {
+		return new SettingsModelString("FeatureStorage", FeatureStorage.HEAP.toString());
+	}
+
+	/**
+	 * If true, the class probabilities are appended as an image with one
+	 * channel per class.
+	 */
+	protected static SettingsModelBoolean createOutputProbabilitiesModel() {
+		return new SettingsModelBoolean("OutputProbabilities", false);
+	}
+
+	/**
+	 * Pixel type of the probability image, see {@link ProbabilityPrecision}.
+	 */
+	protected static SettingsModelString createProbabilityPrecisionModel() {
+		return new SettingsModelString("ProbabilityPrecision", ProbabilityPrecision.UNSIGNED_BYTE.toString());
+	}
+
+	/**
+	 * Number of most likely classes whose probabilities are stored. Zero
+	 * stores all classes.
+	 */
+	protected static SettingsModelIntegerBounded createTopClassesModel() {
+		return new SettingsModelIntegerBounded("TopClasses", 0, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * If true, the time, pixels and allocated bytes of each processing stage
+	 * and row are written to the metrics table and summed up in flow
+	 * variables.
+	 */
+	protected static SettingsModelBoolean createCollectMetricsModel() {
+		return new SettingsModelBoolean("CollectMetrics", false);
+	}
+
+	/**
+	 * If true, a downsampled copy of the image is segmented first and only
+	 * the uncertain blocks are segmented at full resolution, see
+	 * {@link TiledSegmenter#segmentPyramid}. It can not be combined with
+	 * appending the probabilities.
+	 */
+	protected static SettingsModelBoolean createPyramidModel() {
+		return new SettingsModelBoolean("Pyramid", false);
+	}
+
+	/**
+	 * Downsampling factor of the coarse pass of the pyramid.
+	 */
+	protected static SettingsModelIntegerBounded createPyramidFactorModel() {
+		return new SettingsModelIntegerBounded("PyramidFactor", 4, 2, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Minimal probability in percent of a coarse label to skip a block.
+	 */
+	protected static SettingsModelIntegerBounded createPyramidConfidenceModel() {
+		return new SettingsModelIntegerBounded("PyramidConfidence", 90, 0, 100);
+	}
+
 	/**
 	 * KNIP logger instance.
 	 */
@@ -136,7 +266,8 @@ public class SegmenterNodeModel<T extends RealType<T>> extends NodeModel {
 	 * Constructor of the MinMaxRadiusNodeModel.
 	 */
 	protected SegmenterNodeModel() {
-		super(new PortType[] { BufferedDataTable.TYPE, WekaSegmenterPortObject.TYPE }, new PortType[] { BufferedDataTable.TYPE });
+		super(new PortType[] { BufferedDataTable.TYPE, WekaSegmenterPortObject.TYPE },
+				new PortType[] { BufferedDataTable.TYPE, BufferedDataTable.TYPE });
 	}
 
 	/**
@@ -150,8 +281,14 @@ public class SegmenterNodeModel<T extends RealType<T>> extends NodeModel {
 		// Check table spec if column is available.
 		NodeUtils.autoColumnSelection(inTable, imageColumn, ImgPlusValue.class, this.getClass());
 
+		// The pyramid segmentation skips the classification of uniform blocks,
+		// so it has no probabilities for them.
+		if (pyramid.getBooleanValue() && outputProbabilities.getBooleanValue())
+			throw new InvalidSettingsException(
+					"Class probabilities can not be appended to a pyramid segmentation.");
+
 		// If everything looks fine, create an output table spec.
-		return new DataTableSpec[] { createDataTableSpec() };
+		return new DataTableSpec[] { createDataTableSpec(), MetricsTable.createSpec() };
 	}
 
 	/**
@@ -165,55 +302,262 @@ public class SegmenterNodeModel<T extends RealType<T>> extends NodeModel {
 		final BufferedDataTable data = (BufferedDataTable) inData[0];
 		final WekaSegmenterPortObject model = (WekaSegmenterPortObject) inData[1];
 
+		// Create a container to store the output.
+		final BufferedDataTableRowOutput output = new BufferedDataTableRowOutput(
+				exec.createDataContainer(createDataTableSpec()));
+		final BufferedDataTableRowOutput metricsOutput = new BufferedDataTableRowOutput(
+				exec.createDataContainer(MetricsTable.createSpec()));
+		final MetricsTable metrics = segment(new DataTableRowInput(data), output, metricsOutput, model.getModel(),
+				data.size(), exec);
+		if (collectMetrics.getBooleanValue())
+			metrics.pushFlowVariables(this::pushFlowVariableDouble);
+
+		return new BufferedDataTable[] { output.getDataTable(), metricsOutput.getDataTable() };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public InputPortRole[] getInputPortRoles() {
+		return new InputPortRole[] { InputPortRole.DISTRIBUTED_STREAMABLE, InputPortRole.NONDISTRIBUTED_NONSTREAMABLE };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public OutputPortRole[] getOutputPortRoles() {
+		return new OutputPortRole[] { OutputPortRole.DISTRIBUTED, OutputPortRole.DISTRIBUTED };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public StreamableOperator createStreamableOperator(final PartitionInfo partitionInfo,
+			final PortObjectSpec[] inSpecs) throws InvalidSettingsException {
+		// The metrics are only written to the table in streaming execution,
+		// the flow variables are not pushed, see MetricsTable#pushFlowVariables.
+		return new StreamableOperator() {
+
+			@Override
+			public void runFinal(final PortInput[] inputs, final PortOutput[] outputs, final ExecutionContext exec)
+					throws Exception {
+				final WekaSegmenterPortObject model = (WekaSegmenterPortObject) ((PortObjectInput) inputs[1])
+						.getPortObject();
+				segment((RowInput) inputs[0], (RowOutput) outputs[0], (RowOutput) outputs[1], model.getModel(), -1,
+						exec);
+			}
+		};
+	}
+
+	/**
+	 * Segments the rows of the input and pushes the results to the output,
+	 * both in classic and in streaming execution. Closes input and outputs.
+	 *
+	 * @param metricsOutput receives the metrics of each row, if enabled
+	 * @param numRows the number of input rows, or -1 if unknown
+	 * @return the metrics of all rows
+	 */
+	private MetricsTable segment(final RowInput input, final RowOutput output, final RowOutput metricsOutput,
+			final Classifier classifier, final long numRows, final ExecutionContext exec) throws Exception {
 		// Variables to compute progress.
-		final long numRows = data.size();
-		long currentRow = 0;
+		final long[] currentRow = { 0 };
 
-		// Create a container to store the output.
-		Classifier classifier = model.getModel();
-		final BufferedDataContainer container = exec.createDataContainer(createDataTableSpec());
-
-		for (final DataRow row : data) {
-			// Check if execution got canceled.
-			exec.checkCanceled();
-			// Get the data cell.
-			executeRow(exec, data, container, row, classifier);
-			// Update progress indicator.
-			exec.setProgress(currentRow++ / numRows);
+		final LabelType type = LabelType.fromLabel(labelType.getStringValue());
+		final CellFactory cellFactory = new CellFactory(exec,
+				type == LabelType.LABELING ? classifier.classNames() : null);
+		final int imageColumnIndex = input.getDataTableSpec().findColumnIndex(imageColumn.getStringValue());
+		final MetricsTable metrics = new MetricsTable();
+
+		// The pool is shared by the rows and the feature computation within a row.
+		final int threads = numberOfThreads.getIntValue();
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		// Consecutive images of the same size reuse the feature arrays.
+		final BufferPool buffers = new BufferPool();
+		try {
+			final ProbabilityPrecision precision = outputProbabilities.getBooleanValue()
+					? ProbabilityPrecision.fromLabel(probabilityPrecision.getStringValue()) : null;
+			final FeatureStorage storage = FeatureStorage.fromLabel(featureStorage.getStringValue());
+			final TiledSegmenter segmenter = new TiledSegmenter(classifier, tileSize.getIntValue(), type, precision,
+					topClasses.getIntValue(), pool, storage, buffers, this);
+			if (threads <= 1) {
+				DataRow row;
+				while ((row = input.poll()) != null) {
+					// Check if execution got canceled.
+					exec.checkCanceled();
+					addRow(output, metricsOutput, metrics, cellFactory, row,
+							segmentRow(row, imageColumnIndex, segmenter));
+					// Update progress indicator.
+					setProgress(exec, ++currentRow[0], numRows);
+				}
+			} else {
+				new OrderedRowProcessor<SegmentedRow>(pool, 2 * threads, exec).process(input::poll,
+						row -> segmentRow(row, imageColumnIndex, segmenter),
+						(row, segmentation) -> {
+							addRow(output, metricsOutput, metrics, cellFactory, row, segmentation);
+							setProgress(exec, ++currentRow[0], numRows);
+						});
+			}
+		} finally {
+			pool.shutdownNow();
+			buffers.clear();
 		}
 
-		container.close();
+		input.close();
+		output.close();
+		metricsOutput.close();
+		return metrics;
+	}
 
-		return new BufferedDataTable[] { container.getTable() };
+	private static void setProgress(final ExecutionContext exec, final long currentRow, final long numRows) {
+		if (numRows < 0)
+			exec.setMessage("Row " + currentRow);
+		else
+			exec.setProgress((double) currentRow / numRows);
 	}
 
 	private static NodeLogger logger = NodeLogger.getLogger(SegmenterNodeModel.class);
-	
-	private <T> void executeRow(final ExecutionContext exec, final BufferedDataTable data,
-			final BufferedDataContainer container, final DataRow row, Classifier classifier) throws IOException {
 
-		@SuppressWarnings("unchecked")
-		final ImgPlusCell<?> imageCell = (ImgPlusCell<?>) row.getCell(data.getSpec().findColumnIndex(imageColumn.getStringValue()));
+	/**
+	 * Segments the image of the given row. This method is called concurrently
+	 * from several threads if more than one thread is configured.
+	 *
+	 * @return the images and the metrics of the row, or null if the image
+	 *         cell is missing
+	 */
+	private SegmentedRow segmentRow(final DataRow row, final int imageColumnIndex, final TiledSegmenter segmenter)
+			throws Exception {
+		final DataCell cell = row.getCell(imageColumnIndex);
+		if (cell.isMissing())
+			return null;
+		final RowMetrics metrics = collectMetrics.getBooleanValue() ? new RowMetrics() : RowMetrics.disabled();
+		final ImgPlus<?> image = metrics.measure(RowMetrics.READ, 0, () -> ((ImgPlusValue<?>) cell).getImgPlus());
+		metrics.addPixels(RowMetrics.READ, Intervals.numElements(image));
+		final TiledSegmenter.Segmentation segmentation;
+		if (pyramid.getBooleanValue())
+			segmentation = segmenter.segmentPyramid(image, pyramidFactor.getIntValue(),
+					pyramidConfidence.getIntValue() / 100.0, metrics);
+		else
+			segmentation = segmenter.segment(image, metrics);
+		return new SegmentedRow(image, images(image, segmentation), metrics);
+	}
+
+	private static ImgPlus<?>[] images(final ImgPlus<?> image, final TiledSegmenter.Segmentation segmentation) {
+		final ImgPlus<?> labels = new ImgPlus<>(segmentation.labels());
+		if (segmentation.probabilities() == null)
+			return new ImgPlus<?>[] { labels };
+		// The probabilities keep the axes of the image, the classes are channels.
+		final AxisType[] axes = new AxisType[image.numDimensions() + 1];
+		for (int d = 0; d < image.numDimensions(); d++)
+			axes[d] = image.axis(d).type();
+		axes[image.numDimensions()] = Axes.CHANNEL;
+		final ImgPlus<?> probabilities = new ImgPlus<>(segmentation.probabilities(), "Probabilities", axes);
+		if (segmentation.classes() == null)
+			return new ImgPlus<?>[] { labels, probabilities };
+		return new ImgPlus<?>[] { labels, probabilities, new ImgPlus<>(segmentation.classes(), "Classes", axes) };
+	}
 
-		if (imageCell.isMissing()) {
-			container.addRowToTable(new DefaultRow(row.getKey(), new MissingCell(null), new MissingCell(null)));
+	private void addRow(final RowOutput output, final RowOutput metricsOutput, final MetricsTable metrics,
+			final CellFactory cellFactory, final DataRow row, final SegmentedRow segmentation)
+			throws Exception {
+		final DataCell[] cells = new DataCell[createDataTableSpec().getNumColumns()];
+		if (segmentation == null) {
+			Arrays.fill(cells, new MissingCell(null));
 			LOGGER.warn("Missing cell in row " + row.getKey().getString() + ". Missing cell inserted.");
-		} else {
-			final ImgPlus<?> image = imageCell.getImgPlus();
-			Img<ByteType> segmentation = classifier.segment(image);
-			ImgPlus<ByteType> imgPlus = new ImgPlus<>(segmentation);
-			container.addRowToTable(new DefaultRow(row.getKey(), new ImgPlusCellFactory(exec).createCell(imgPlus)));
+			output.push(new DefaultRow(row.getKey(), cells));
+			return;
+		}
+		long pixels = 0;
+		for (final ImgPlus<?> image : segmentation.images)
+			pixels += Intervals.numElements(image);
+		segmentation.metrics.measure(RowMetrics.WRITE, pixels, () -> {
+			for (int i = 0; i < cells.length; i++)
+				cells[i] = i == 0 ? cellFactory.createLabelCell(segmentation.images[i], segmentation.source)
+						: cellFactory.images.createCell(segmentation.images[i]);
+			return null;
+		});
+		output.push(new DefaultRow(row.getKey(), cells));
+		if (collectMetrics.getBooleanValue())
+			metrics.push(metricsOutput, row.getKey().getString(), segmentation.metrics);
+	}
+
+	/**
+	 * The images of a segmented row, one per output column, and the metrics
+	 * of the row.
+	 */
+	private static final class SegmentedRow {
+
+		private final ImgPlus<?> source;
+
+		private final ImgPlus<?>[] images;
+
+		private final RowMetrics metrics;
+
+		private SegmentedRow(final ImgPlus<?> source, final ImgPlus<?>[] images, final RowMetrics metrics) {
+			this.source = source;
+			this.images = images;
+			this.metrics = metrics;
+		}
+	}
+
+	/**
+	 * Creates the cells of the output columns. The label image becomes a
+	 * labeling if class names are given: its pixels are indices into the
+	 * label sets, the empty set followed by one set per class, see
+	 * {@link LabelType#LABELING}.
+	 */
+	private static final class CellFactory {
+
+		private final ImgPlusCellFactory images;
+
+		private final LabelingCellFactory labelings;
+
+		private final List<Set<String>> labelSets;
+
+		/**
+		 * @param classNames the classes of the labeling, or null to create
+		 *            image cells only
+		 */
+		private CellFactory(final ExecutionContext exec, final List<String> classNames) {
+			this.images = new ImgPlusCellFactory(exec);
+			this.labelings = classNames == null ? null : new LabelingCellFactory(exec);
+			this.labelSets = new ArrayList<>();
+			if (classNames != null) {
+				labelSets.add(Collections.emptySet());
+				for (final String className : classNames)
+					labelSets.add(Collections.singleton(className));
+			}
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private DataCell createLabelCell(final ImgPlus labels, final ImgPlus<?> source) throws IOException {
+			if (labelings == null)
+				return images.createCell(labels);
+			final ImgLabeling<String, ?> labeling = new ImgLabeling<>(labels.getImg());
+			labeling.getMapping().setLabelSets(labelSets);
+			return labelings.createCell(labeling,
+					new DefaultLabelingMetadata(source, source, source, new DefaultLabelingColorTable()));
 		}
 	}
 
 	/**
 	 * Create the table spec of the output table. I
 	 * 
-	 * @return table spec with column "Copy"
+	 * @return table spec with column "Copy", followed by the probabilities and
+	 *         the classes of the probability channels, if enabled
 	 */
 	private DataTableSpec createDataTableSpec() {
-		return new DataTableSpec(new String[] { "Copy"},
-				new DataType[] { ImgPlusCell.TYPE });
+		final DataType labels = LabelType.LABELING.toString().equals(labelType.getStringValue()) ? LabelingCell.TYPE
+				: ImgPlusCell.TYPE;
+		if (!outputProbabilities.getBooleanValue())
+			return new DataTableSpec(new String[] { "Copy" }, new DataType[] { labels });
+		if (topClasses.getIntValue() == 0)
+			return new DataTableSpec(new String[] { "Copy", "Probabilities" },
+					new DataType[] { labels, ImgPlusCell.TYPE });
+		return new DataTableSpec(new String[] { "Copy", "Probabilities", "Probability classes" },
+				new DataType[] { labels, ImgPlusCell.TYPE, ImgPlusCell.TYPE });
 	}
 
 	/**
@@ -221,8 +565,9 @@ public class SegmenterNodeModel<T extends RealType<T>> extends NodeModel {
 	 */
 	@Override
 	protected void saveSettingsTo(NodeSettingsWO settings) {
-		labelingColumn.saveSettingsTo(settings);
-		imageColumn.saveSettingsTo(settings);
+		for(SettingsModel model : settingsModels)
+			model.saveSettingsTo(settings);
+		optionalSettings.saveSettingsTo(settings);
 	}
 
 	/**
@@ -230,8 +575,9 @@ public class SegmenterNodeModel<T extends RealType<T>> extends NodeModel {
 	 */
 	@Override
 	protected void validateSettings(NodeSettingsRO settings) throws InvalidSettingsException {
-		labelingColumn.validateSettings(settings);
-		imageColumn.validateSettings(settings);
+		for(SettingsModel model : settingsModels)
+			model.validateSettings(settings);
+		optionalSettings.validateSettings(settings);
 	}
 
 	/**
@@ -239,8 +585,9 @@ public class SegmenterNodeModel<T extends RealType<T>> extends NodeModel {
 	 */
 	@Override
 	protected void loadValidatedSettingsFrom(NodeSettingsRO settings) throws InvalidSettingsException {
-		labelingColumn.loadSettingsFrom(settings);
-		imageColumn.loadSettingsFrom(settings);
+		for(SettingsModel model : settingsModels)
+			model.loadSettingsFrom(settings);
+		optionalSettings.loadSettingsFrom(settings);
 	}
 
 	/**
@@ -266,7 +613,18 @@ public class SegmenterNodeModel<T extends RealType<T>> extends NodeModel {
 	 */
 	@Override
 	protected void reset() {
-		// Ex.: Models built during execution.
+		// The cached features of the previous execution are not needed
+		// anymore, and spilled ones occupy temporary files. The entries
+		// other nodes used are kept.
+		FeatureStackCache.getInstance().release(this);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void onDispose() {
+		FeatureStackCache.getInstance().release(this);
 	}
 
 }
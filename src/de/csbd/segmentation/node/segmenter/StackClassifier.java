@@ -0,0 +1,320 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.features.classification.Classifier;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import weka.classifiers.AbstractClassifier;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Classifies the pixels of a {@link FeatureStack} with the Weka classifier of
+ * a {@link Classifier}.
+ * <p>
+ * The pixels are split into slabs along the last dimension, which are
+ * classified concurrently on the given pool, each slab in blocks of
+ * {@link #BLOCK_SIZE} pixels. A random forest is classified by a
+ * {@link ForestEngine}, other classifiers pixel by pixel through Weka.
+ * Besides the label of each pixel,
+ * the class probabilities can be written to an image with one channel per
+ * class, or per most likely class.
+ */
+final class StackClassifier {
+
+	/** Number of slabs per thread, to balance the load between the threads. */
+	private static final int SLABS_PER_THREAD = 4;
+
+	/** Number of pixels whose features are gathered and classified at once. */
+	private static final int BLOCK_SIZE = 1024;
+
+	private final weka.classifiers.Classifier classifier;
+
+	private final Instances header;
+
+	private final int classCount;
+
+	/** Null if the classifier is no random forest. */
+	private final ForestEngine engine;
+
+	private final ThreadLocal<weka.classifiers.Classifier> copies = new ThreadLocal<>();
+
+	/** The block arrays of each thread, reused for all slabs and images. */
+	private final ThreadLocal<Scratch> scratches = new ThreadLocal<>();
+
+	/** The label written for the first class. */
+	private final int firstLabel;
+
+	/**
+	 * @param useEngine false to classify a random forest through Weka as well,
+	 *            which gives the same result more slowly
+	 */
+	StackClassifier(final Classifier classifier, final boolean useEngine) {
+		this(classifier, useEngine, 0);
+	}
+
+	/**
+	 * @param firstLabel the label of the first class, the labels of the other
+	 *            classes follow it
+	 */
+	StackClassifier(final Classifier classifier, final boolean useEngine, final int firstLabel) {
+		this.firstLabel = firstLabel;
+		this.classifier = classifier.getClassifier();
+		this.header = header(classifier.features().attributeLabels(), classifier.classNames());
+		this.classCount = header.numClasses();
+		final FlatForest forest = useEngine ? FlatForest.of(this.classifier) : null;
+		this.engine = forest != null && forest.classCount() == classCount ? forest.engine() : null;
+	}
+
+	/**
+	 * Creates the empty data set Weka expects: one numeric attribute per
+	 * feature, followed by the nominal class attribute.
+	 */
+	static Instances header(final List<String> featureNames, final List<String> classNames) {
+		final ArrayList<Attribute> attributes = new ArrayList<>();
+		for (final String name : featureNames)
+			attributes.add(new Attribute(name));
+		attributes.add(new Attribute("class", classNames));
+		final Instances instances = new Instances("segment", attributes, 0);
+		instances.setClassIndex(featureNames.size());
+		return instances;
+	}
+
+	<T extends IntegerType<T>> void classify(final FeatureStack stack, final RandomAccessibleInterval<T> output,
+			final ExecutorService pool) throws Exception {
+		classify(stack, output, null, null, null, pool);
+	}
+
+	/**
+	 * Classifies the pixels and writes the class probabilities in addition to
+	 * the labels.
+	 *
+	 * @param probabilities has one more dimension than the output, whose
+	 *            channels hold the probabilities of the classes, or of the most
+	 *            likely classes if classes is not null; may be null
+	 * @param precision encodes the probabilities
+	 * @param classes has the same size as probabilities and receives the class
+	 *            index of each channel, the most likely class first; may be
+	 *            null
+	 */
+	<T extends IntegerType<T>, P extends RealType<P>, C extends IntegerType<C>> void classify(
+			final FeatureStack stack, final RandomAccessibleInterval<T> output,
+			final RandomAccessibleInterval<P> probabilities, final ProbabilityPrecision precision,
+			final RandomAccessibleInterval<C> classes, final ExecutorService pool) throws Exception {
+		final List<Callable<Void>> tasks = new ArrayList<>();
+		for (final Interval slab : slabs(output, parallelism(pool)))
+			tasks.add(() -> {
+				classifySlab(stack, Views.interval(output, slab), probabilities, precision, classes, slab);
+				return null;
+			});
+		FeatureStack.invokeAll(pool, tasks);
+	}
+
+	/**
+	 * Classifies a slab in blocks: the feature values of a block are copied
+	 * into arrays, classified together, and the labels and probabilities are
+	 * written from the resulting distributions.
+	 */
+	private <T extends IntegerType<T>, P extends RealType<P>, C extends IntegerType<C>> void classifySlab(
+			final FeatureStack stack, final RandomAccessibleInterval<T> output,
+			final RandomAccessibleInterval<P> probabilities, final ProbabilityPrecision precision,
+			final RandomAccessibleInterval<C> classes, final Interval slab) throws Exception {
+		final int count = stack.count();
+		final List<Cursor<FloatType>> features = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			features.add(Views.flatIterable(Views.interval(stack.get(i), slab)).cursor());
+		final int channelDimension = output.numDimensions();
+		final int channels = probabilities == null ? 0 : (int) probabilities.dimension(channelDimension);
+		final List<Cursor<P>> probabilityChannels = new ArrayList<>(channels);
+		final List<Cursor<C>> classChannels = new ArrayList<>(channels);
+		for (int c = 0; c < channels; c++) {
+			probabilityChannels.add(channelCursor(probabilities, channelDimension, c, slab));
+			if (classes != null)
+				classChannels.add(channelCursor(classes, channelDimension, c, slab));
+		}
+		final Scratch scratch = scratch(count);
+		final Instance instance = scratch.instance;
+		final float[][] values = scratch.values;
+		final double[] distributions = scratch.distributions;
+		final int[] order = scratch.order;
+		final Cursor<T> out = Views.flatIterable(output).cursor();
+		long remaining = Intervals.numElements(slab);
+		while (remaining > 0) {
+			final int size = (int) Math.min(BLOCK_SIZE, remaining);
+			remaining -= size;
+			for (int f = 0; f < count; f++) {
+				final Cursor<FloatType> cursor = features.get(f);
+				final float[] column = values[f];
+				for (int i = 0; i < size; i++)
+					column[i] = cursor.next().get();
+			}
+			if (engine != null)
+				engine.distributions(values, size, distributions);
+			else
+				distributions(instance, values, size, distributions);
+			for (int i = 0; i < size; i++) {
+				final int offset = i * classCount;
+				if (classes == null) {
+					out.next().setInteger(firstLabel + maxIndex(distributions, offset, classCount));
+					for (int c = 0; c < channels; c++)
+						probabilityChannels.get(c).next().setReal(precision.encode(distributions[offset + c]));
+				} else {
+					sortByProbability(distributions, offset, order, channels);
+					out.next().setInteger(firstLabel + order[0]);
+					for (int c = 0; c < channels; c++) {
+						probabilityChannels.get(c).next().setReal(precision.encode(distributions[offset + order[c]]));
+						classChannels.get(c).next().setInteger(order[c]);
+					}
+				}
+			}
+		}
+	}
+
+	private Scratch scratch(final int count) {
+		Scratch scratch = scratches.get();
+		if (scratch == null || scratch.values.length != count) {
+			scratch = new Scratch(count, engine == null ? instance(count) : null);
+			scratches.set(scratch);
+		}
+		return scratch;
+	}
+
+	private Instance instance(final int count) {
+		final Instance instance = new DenseInstance(count + 1);
+		instance.setDataset(header);
+		instance.setMissing(count);
+		return instance;
+	}
+
+	/**
+	 * Computes the distributions of a block pixel by pixel with the Weka
+	 * classifier, in the layout of {@link ForestEngine#distributions}.
+	 */
+	private void distributions(final Instance instance, final float[][] values, final int size,
+			final double[] result) throws Exception {
+		final weka.classifiers.Classifier classifier = threadSafeClassifier();
+		for (int i = 0; i < size; i++) {
+			for (int f = 0; f < values.length; f++)
+				instance.setValue(f, values[f][i]);
+			final double[] distribution = classifier.distributionForInstance(instance);
+			System.arraycopy(distribution, 0, result, i * classCount, classCount);
+		}
+	}
+
+	private static <T> Cursor<T> channelCursor(final RandomAccessibleInterval<T> image, final int channelDimension,
+			final int channel, final Interval slab) {
+		return Views.flatIterable(Views.interval(Views.hyperSlice(image, channelDimension, channel), slab)).cursor();
+	}
+
+	/**
+	 * The index of the largest of {@code length} values starting at
+	 * {@code offset}, the first one on ties, like
+	 * {@link weka.core.Utils#maxIndex}. This is also the label Weka assigns,
+	 * except that Weka returns a missing value instead of 0 if all
+	 * probabilities are zero.
+	 */
+	static int maxIndex(final double[] values, final int offset, final int length) {
+		int max = 0;
+		for (int i = 1; i < length; i++)
+			if (values[offset + i] > values[offset + max])
+				max = i;
+		return max;
+	}
+
+	/**
+	 * Writes the indices of the {@code k} largest of the values starting at
+	 * {@code offset} to the beginning of {@code order}, the largest first. A
+	 * selection sort is the fastest choice for the few classes of a
+	 * segmentation.
+	 */
+	private static void sortByProbability(final double[] values, final int offset, final int[] order,
+			final int k) {
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		for (int i = 0; i < k; i++) {
+			int max = i;
+			for (int j = i + 1; j < order.length; j++)
+				if (values[offset + order[j]] > values[offset + order[max]])
+					max = j;
+			final int swap = order[i];
+			order[i] = order[max];
+			order[max] = swap;
+		}
+	}
+
+	/**
+	 * {@link FastRandomForest} and {@link FlatForest} only read their trees
+	 * during classification and can be shared between threads, other Weka
+	 * classifiers are copied once per thread.
+	 */
+	private weka.classifiers.Classifier threadSafeClassifier() throws Exception {
+		if (classifier instanceof FastRandomForest || classifier instanceof FlatForest)
+			return classifier;
+		weka.classifiers.Classifier copy = copies.get();
+		if (copy == null) {
+			copy = AbstractClassifier.makeCopy(classifier);
+			copies.set(copy);
+		}
+		return copy;
+	}
+
+	static int parallelism(final ExecutorService pool) {
+		if (pool instanceof ForkJoinPool)
+			return ((ForkJoinPool) pool).getParallelism();
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Splits the interval along its last dimension into about
+	 * {@link #SLABS_PER_THREAD} slabs per thread.
+	 */
+	static List<Interval> slabs(final Interval interval, final int threads) {
+		final int last = interval.numDimensions() - 1;
+		final long size = interval.dimension(last);
+		final long step = Math.max(1, (size + SLABS_PER_THREAD * threads - 1) / (SLABS_PER_THREAD * threads));
+		final List<Interval> slabs = new ArrayList<>();
+		for (long min = interval.min(last); min <= interval.max(last); min += step) {
+			final long[] mins = Intervals.minAsLongArray(interval);
+			final long[] maxs = Intervals.maxAsLongArray(interval);
+			mins[last] = min;
+			maxs[last] = Math.min(min + step - 1, interval.max(last));
+			slabs.add(new FinalInterval(mins, maxs));
+		}
+		return slabs;
+	}
+
+	/**
+	 * The arrays a thread needs to classify a block.
+	 */
+	private final class Scratch {
+
+		private final float[][] values;
+
+		private final double[] distributions = new double[BLOCK_SIZE * classCount];
+
+		private final int[] order = new int[classCount];
+
+		/** Null if the engine is used. */
+		private final Instance instance;
+
+		private Scratch(final int count, final Instance instance) {
+			this.values = new float[count][BLOCK_SIZE];
+			this.instance = instance;
+		}
+	}
+}
@@ -0,0 +1,406 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.features.FeatureGroup;
+import net.imglib2.algorithm.features.classification.Classifier;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.Type;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Segments an image block by block, so that the feature stack is never
+ * computed for the whole image at once.
+ * <p>
+ * The filters of each block read their neighborhood directly from the whole
+ * image, so the block borders get the same features as they would get in the
+ * whole image and no halo needs to be computed and thrown away. Peak memory
+ * depends on the tile size, not on the image size. A tile size of zero
+ * segments the whole image as a single block.
+ * <p>
+ * Within a block, the features and the classification are spread over the
+ * given pool.
+ * <p>
+ * If a probability precision is given, the class probabilities are computed
+ * as well and stored in an image with an additional channel dimension.
+ * <p>
+ * The labels are written directly in the pixel type of the {@link LabelType},
+ * so no converted copy of the label image is needed.
+ * <p>
+ * The feature arrays of a block can be taken from a {@link BufferPool}, so
+ * that the blocks of consecutive images of the same size reuse them. The
+ * output images are not pooled, they belong to the segmentation returned.
+ */
+final class TiledSegmenter {
+
+	private final FeatureGroup features;
+
+	private final String featuresId;
+
+	private final FeatureStackCache cache = FeatureStackCache.getInstance();
+
+	private final StackClassifier classifier;
+
+	private final int tileSize;
+
+	private final ExecutorService pool;
+
+	private final ProbabilityPrecision precision;
+
+	private final int probabilityChannels;
+
+	private final boolean topClasses;
+
+	private final LabelType labelType;
+
+	private final int classCount;
+
+	private final FeatureStorage storage;
+
+	private final BufferPool buffers;
+
+	/** The node the cached feature stacks are released for, may be null. */
+	private final Object cacheOwner;
+
+	/** Edge length of the blocks of a pyramid segmentation without tiles. */
+	private static final int PYRAMID_BLOCK_SIZE = 64;
+
+	TiledSegmenter(final Classifier classifier, final int tileSize, final ProbabilityPrecision precision,
+			final int topClasses, final ExecutorService pool) {
+		this(classifier, tileSize, LabelType.BYTE, precision, topClasses, pool, FeatureStorage.HEAP, null, null);
+	}
+
+	/**
+	 * @param precision the type of the probability image, or null to compute
+	 *            the labels only
+	 * @param topClasses only the probabilities of this many most likely
+	 *            classes are stored, together with their class indices; zero
+	 *            stores the probabilities of all classes
+	 * @param storage where the features of a block are stored
+	 * @param buffers the pool of the feature arrays of blocks that are not
+	 *            cached and stored on the heap, or null to allocate them for
+	 *            each block
+	 * @param cacheOwner the node the cached feature stacks are released for,
+	 *            see {@link FeatureStackCache#release(Object)}
+	 * @throws IllegalArgumentException if the label type can not store the
+	 *             classes of the classifier
+	 */
+	TiledSegmenter(final Classifier classifier, final int tileSize, final LabelType labelType,
+			final ProbabilityPrecision precision, final int topClasses, final ExecutorService pool,
+			final FeatureStorage storage, final BufferPool buffers, final Object cacheOwner) {
+		this.classCount = classifier.classNames().size();
+		labelType.checkClassCount(classCount);
+		this.labelType = labelType;
+		this.features = classifier.features();
+		this.featuresId = FeatureStackCache.featuresId(features);
+		this.classifier = new StackClassifier(classifier, true, labelType.firstLabel());
+		this.tileSize = tileSize;
+		this.pool = pool;
+		this.precision = precision;
+		this.topClasses = topClasses > 0;
+		this.probabilityChannels = this.topClasses ? Math.min(topClasses, classCount) : classCount;
+		this.storage = storage;
+		this.buffers = buffers;
+		this.cacheOwner = cacheOwner;
+	}
+
+	Segmentation segment(final RandomAccessibleInterval<?> image) throws Exception {
+		return segment(image, RowMetrics.disabled());
+	}
+
+	/**
+	 * Segments the image and records the time of the feature computation and
+	 * of the classification.
+	 */
+	Segmentation segment(final RandomAccessibleInterval<?> image, final RowMetrics metrics) throws Exception {
+		final RandomAccessibleInterval<?> zeroMin = Views.zeroMin(image);
+		final RandomAccessible<FloatType> source = FeatureStack.source(zeroMin);
+		final Img<? extends IntegerType<?>> output = createImg(zeroMin, labelType.createType(classCount));
+		final Interval channelInterval = precision == null ? null : withChannels(zeroMin, probabilityChannels);
+		final Img<? extends RealType<?>> probabilities = precision == null ? null
+				: createImg(channelInterval, precision.createType());
+		final Img<? extends IntegerType<?>> classes = precision == null || !topClasses ? null
+				: createImg(channelInterval, classCount <= 128 ? new ByteType() : new UnsignedShortType());
+		final String imageId = cache.isEnabled() ? FeatureStackCache.imageId(zeroMin) : null;
+		// Cached stacks are kept, so only the others can use pooled arrays.
+		final BufferPool tileBuffers = imageId == null ? buffers : null;
+		for (final Interval tile : tiles(zeroMin, tileSize)) {
+			final long pixels = Intervals.numElements(tile);
+			final FeatureStack stack = metrics.measure(RowMetrics.FEATURES, pixels, () -> cache.get(cacheOwner,
+					imageId, featuresId, tile, storage,
+					() -> FeatureStack.compute(features, source, tile, pool, storage, tileBuffers)));
+			try {
+				metrics.measure(RowMetrics.CLASSIFY, pixels, () -> {
+					classify(stack, output, tile, probabilities, classes, withChannels(tile, probabilityChannels));
+					return null;
+				});
+			} finally {
+				if (tileBuffers != null)
+					stack.release(tileBuffers);
+			}
+		}
+		return new Segmentation(output, probabilities, classes);
+	}
+
+	/**
+	 * Segments a downsampled copy of the image first and only computes the
+	 * features of the blocks at full resolution whose labels are uncertain.
+	 * <p>
+	 * The image is downsampled by averaging cubes of {@code factor} pixels
+	 * edge length. A block of the full image takes the label of the coarse
+	 * segmentation if all coarse pixels that cover it, plus a margin of one
+	 * coarse pixel, have this label with at least the given probability.
+	 * Other blocks, at class boundaries or where the classifier is unsure,
+	 * are segmented at full resolution. The blocks have the tile size, or a
+	 * default size if the tile size is zero. The probabilities are not
+	 * computed.
+	 * <p>
+	 * The classifier is trained on features of the full resolution, so the
+	 * coarse pass only decides which blocks can be skipped.
+	 *
+	 * @param factor the downsampling factor in each dimension
+	 * @param confidence the minimal probability of a coarse label to be used
+	 */
+	Segmentation segmentPyramid(final RandomAccessibleInterval<?> image, final int factor, final double confidence,
+			final RowMetrics metrics) throws Exception {
+		final RandomAccessibleInterval<?> zeroMin = Views.zeroMin(image);
+		final Img<FloatType> coarse = downsample(zeroMin, factor);
+		final Img<IntType> coarseLabels = ArrayImgs.ints(Intervals.dimensionsAsLongArray(coarse));
+		final Img<FloatType> coarseProbabilities = ArrayImgs.floats(
+				Intervals.dimensionsAsLongArray(withChannels(coarse, classCount)));
+		final RandomAccessible<FloatType> coarseSource = FeatureStack.source(coarse);
+		for (final Interval tile : tiles(coarse, tileSize)) {
+			final long pixels = Intervals.numElements(tile);
+			final FeatureStack stack = metrics.measure(RowMetrics.FEATURES, pixels,
+					() -> FeatureStack.compute(features, coarseSource, tile, pool, storage, buffers));
+			try {
+				metrics.measure(RowMetrics.CLASSIFY, pixels, () -> {
+					classifier.classify(stack, Views.zeroMin(Views.interval(coarseLabels, tile)),
+							Views.zeroMin(Views.interval(coarseProbabilities, withChannels(tile, classCount))),
+							ProbabilityPrecision.FLOAT, null, pool);
+					return null;
+				});
+			} finally {
+				stack.release(buffers);
+			}
+		}
+
+		final RandomAccessible<FloatType> source = FeatureStack.source(zeroMin);
+		final Img<? extends IntegerType<?>> output = createImg(zeroMin, labelType.createType(classCount));
+		final String imageId = cache.isEnabled() ? FeatureStackCache.imageId(zeroMin) : null;
+		final BufferPool tileBuffers = imageId == null ? buffers : null;
+		for (final Interval block : tiles(zeroMin, tileSize > 0 ? tileSize : PYRAMID_BLOCK_SIZE)) {
+			final int label = uniformLabel(coarseLabels, coarseProbabilities, coarseBlock(block, factor, coarse),
+					confidence);
+			if (label >= 0) {
+				fill(Views.interval(output, block), label);
+				continue;
+			}
+			final long pixels = Intervals.numElements(block);
+			final FeatureStack stack = metrics.measure(RowMetrics.FEATURES, pixels,
+					() -> cache.get(cacheOwner, imageId, featuresId, block, storage,
+							() -> FeatureStack.compute(features, source, block, pool, storage, tileBuffers)));
+			try {
+				metrics.measure(RowMetrics.CLASSIFY, pixels, () -> {
+					classify(stack, output, block, null, null, null);
+					return null;
+				});
+			} finally {
+				if (tileBuffers != null)
+					stack.release(tileBuffers);
+			}
+		}
+		return new Segmentation(output, null, null);
+	}
+
+	/**
+	 * Averages cubes of the given edge length. The cubes at the upper border
+	 * might be smaller.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Img<FloatType> downsample(final RandomAccessibleInterval<?> image, final int factor) {
+		final int n = image.numDimensions();
+		final long[] dimensions = new long[n];
+		for (int d = 0; d < n; d++)
+			dimensions[d] = (image.dimension(d) + factor - 1) / factor;
+		final Img<FloatType> coarse = ArrayImgs.floats(dimensions);
+		final Cursor<RealType<?>> in = Views.flatIterable((RandomAccessibleInterval<RealType<?>>) image)
+				.localizingCursor();
+		final RandomAccess<FloatType> out = coarse.randomAccess();
+		while (in.hasNext()) {
+			final float value = in.next().getRealFloat();
+			for (int d = 0; d < n; d++)
+				out.setPosition(in.getLongPosition(d) / factor, d);
+			out.get().set(out.get().get() + value);
+		}
+		final Cursor<FloatType> cursor = coarse.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			long count = 1;
+			for (int d = 0; d < n; d++)
+				count *= Math.min(factor, image.dimension(d) - cursor.getLongPosition(d) * factor);
+			cursor.get().set(cursor.get().get() / count);
+		}
+		return coarse;
+	}
+
+	/**
+	 * The coarse pixels that cover the block, plus a margin of one pixel.
+	 */
+	private static Interval coarseBlock(final Interval block, final int factor, final Interval coarse) {
+		final int n = block.numDimensions();
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+		for (int d = 0; d < n; d++) {
+			min[d] = Math.max(coarse.min(d), block.min(d) / factor - 1);
+			max[d] = Math.min(coarse.max(d), block.max(d) / factor + 1);
+		}
+		return new FinalInterval(min, max);
+	}
+
+	/**
+	 * The label of all coarse pixels in the interval, or -1 if they have
+	 * different labels or one of them is less probable than the confidence.
+	 */
+	private int uniformLabel(final Img<IntType> labels, final Img<FloatType> probabilities,
+			final Interval interval, final double confidence) {
+		final Cursor<IntType> cursor = Views.flatIterable(Views.interval(labels, interval)).cursor();
+		final RandomAccess<FloatType> probability = probabilities.randomAccess();
+		final int n = interval.numDimensions();
+		int label = -1;
+		while (cursor.hasNext()) {
+			final int value = cursor.next().get();
+			if (label >= 0 && value != label)
+				return -1;
+			label = value;
+			for (int d = 0; d < n; d++)
+				probability.setPosition(cursor.getLongPosition(d), d);
+			probability.setPosition(value - labelType.firstLabel(), n);
+			if (probability.get().get() < confidence)
+				return -1;
+		}
+		return label;
+	}
+
+	private static void fill(final RandomAccessibleInterval<? extends IntegerType<?>> block, final int label) {
+		for (final IntegerType<?> pixel : Views.iterable(block))
+			pixel.setInteger(label);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void classify(final FeatureStack stack, final Img output, final Interval tile, final Img probabilities,
+			final Img classes, final Interval channelTile) throws Exception {
+		final RandomAccessibleInterval outputTile = Views.zeroMin(Views.interval(output, tile));
+		if (probabilities == null)
+			classifier.classify(stack, outputTile, pool);
+		else
+			classifier.classify(stack, outputTile, Views.zeroMin(Views.interval(probabilities, channelTile)),
+					precision, classes == null ? null : Views.zeroMin(Views.interval(classes, channelTile)), pool);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <T extends Type<?>> Img<? extends T> createImg(final Interval interval, final T type) {
+		return Util.getArrayOrCellImgFactory(interval, (NativeType) type).create(interval, (NativeType) type);
+	}
+
+	/**
+	 * Appends a channel dimension of the given size to the interval.
+	 */
+	private static Interval withChannels(final Interval interval, final int channels) {
+		final int n = interval.numDimensions();
+		final long[] min = new long[n + 1];
+		final long[] max = new long[n + 1];
+		interval.min(min);
+		interval.max(max);
+		max[n] = channels - 1;
+		return new FinalInterval(min, max);
+	}
+
+	/**
+	 * Splits the interval into tiles with the given edge length. The tiles at
+	 * the upper border might be smaller. A tile size of zero returns the
+	 * interval itself.
+	 */
+	static List<Interval> tiles(final Interval interval, final int tileSize) {
+		if (tileSize <= 0)
+			return Collections.singletonList(interval);
+		final int n = interval.numDimensions();
+		final List<Interval> tiles = new ArrayList<>();
+		final long[] min = Intervals.minAsLongArray(interval);
+		while (true) {
+			final long[] max = new long[n];
+			for (int d = 0; d < n; d++)
+				max[d] = Math.min(min[d] + tileSize - 1, interval.max(d));
+			tiles.add(new FinalInterval(min.clone(), max));
+			int d = 0;
+			while (d < n && max[d] == interval.max(d)) {
+				min[d] = interval.min(d);
+				d++;
+			}
+			if (d == n)
+				return tiles;
+			min[d] += tileSize;
+		}
+	}
+
+	/**
+	 * The labels of an image and, if requested, the class probabilities.
+	 */
+	static final class Segmentation {
+
+		private final Img<? extends IntegerType<?>> labels;
+
+		private final Img<? extends RealType<?>> probabilities;
+
+		private final Img<? extends IntegerType<?>> classes;
+
+		private Segmentation(final Img<? extends IntegerType<?>> labels,
+				final Img<? extends RealType<?>> probabilities, final Img<? extends IntegerType<?>> classes) {
+			this.labels = labels;
+			this.probabilities = probabilities;
+			this.classes = classes;
+		}
+
+		/**
+		 * @return the labels in the pixel type of the {@link LabelType}
+		 */
+		Img<? extends IntegerType<?>> labels() {
+			return labels;
+		}
+
+		/**
+		 * @return the probabilities, the last dimension are the classes, or
+		 *         null if they were not computed
+		 */
+		Img<? extends RealType<?>> probabilities() {
+			return probabilities;
+		}
+
+		/**
+		 * @return the class index of each channel of the probabilities, or null
+		 *         if the probabilities of all classes were computed
+		 */
+		Img<? extends IntegerType<?>> classes() {
+			return classes;
+		}
+	}
+}
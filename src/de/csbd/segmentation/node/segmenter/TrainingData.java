@@ -0,0 +1,145 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.view.Views;
+
+/**
+ * The training samples a model was trained with, grouped by the table row
+ * they were extracted from.
+ * <p>
+ * Each row is identified by a fingerprint of its row key, image and labeling.
+ * A later training run can reuse the samples of all rows whose fingerprint is
+ * unchanged and only needs to extract features for new or modified rows.
+ */
+final class TrainingData {
+
+	private static final int VERSION = 2;
+
+	private final String featuresId;
+
+	private final List<String> classNames = new ArrayList<>();
+
+	private final int featureCount;
+
+	private final boolean compressed;
+
+	private final Map<String, TrainingSamples> rows = new LinkedHashMap<>();
+
+	/**
+	 * @param compressed whether the feature values are deflated when written,
+	 *            see {@link TrainingSamples#write}
+	 */
+	TrainingData(final String featuresId, final List<String> classNames, final int featureCount,
+			final boolean compressed) {
+		this.featuresId = featuresId;
+		this.classNames.addAll(classNames);
+		this.featureCount = featureCount;
+		this.compressed = compressed;
+	}
+
+	/**
+	 * Identifies the feature settings the samples were computed with, see
+	 * {@link FeatureStackCache#featuresId}.
+	 */
+	String featuresId() {
+		return featuresId;
+	}
+
+	/**
+	 * The class names, the labels of the samples are indices into this list.
+	 */
+	List<String> classNames() {
+		return Collections.unmodifiableList(classNames);
+	}
+
+	/**
+	 * The index of the class, which is appended if it is new.
+	 */
+	int classIndex(final String className) {
+		int index = classNames.indexOf(className);
+		if (index < 0) {
+			index = classNames.size();
+			classNames.add(className);
+		}
+		return index;
+	}
+
+	int featureCount() {
+		return featureCount;
+	}
+
+	void put(final String fingerprint, final TrainingSamples samples) {
+		rows.put(fingerprint, samples);
+	}
+
+	/**
+	 * @return the samples of the row, or null if the row is unknown
+	 */
+	TrainingSamples get(final String fingerprint) {
+		return rows.get(fingerprint);
+	}
+
+	int rowCount() {
+		return rows.size();
+	}
+
+	/**
+	 * Identifies a row by its key and the content of its image and labeling.
+	 */
+	static String fingerprint(final String rowKey, final RandomAccessibleInterval<?> image,
+			final RandomAccessibleInterval<? extends Set<?>> labeling) {
+		long hash = 0x9E3779B97F4A7C15L;
+		for (final Set<?> labels : Views.flatIterable(labeling)) {
+			long pixel = 0;
+			for (final Object label : labels)
+				pixel += label.toString().hashCode();
+			hash = Long.rotateLeft(hash ^ pixel, 31) * 0x87C37B91114253D5L;
+		}
+		return rowKey + "|" + FeatureStackCache.imageId(image) + "|" + Long.toHexString(hash);
+	}
+
+	void write(final DataOutput out) throws IOException {
+		out.writeInt(VERSION);
+		out.writeUTF(featuresId);
+		out.writeInt(classNames.size());
+		for (final String className : classNames)
+			out.writeUTF(className);
+		out.writeInt(featureCount);
+		out.writeBoolean(compressed);
+		out.writeInt(rows.size());
+		for (final Map.Entry<String, TrainingSamples> row : rows.entrySet()) {
+			out.writeUTF(row.getKey());
+			row.getValue().write(out, compressed);
+		}
+	}
+
+	static TrainingData read(final DataInput in) throws IOException {
+		final int version = in.readInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported version of training data: " + version);
+		final String featuresId = in.readUTF();
+		final int classCount = in.readInt();
+		final List<String> classNames = new ArrayList<>(classCount);
+		for (int i = 0; i < classCount; i++)
+			classNames.add(in.readUTF());
+		final int featureCount = in.readInt();
+		final boolean compressed = in.readBoolean();
+		final TrainingData data = new TrainingData(featuresId, classNames, featureCount, compressed);
+		final int rowCount = in.readInt();
+		for (int i = 0; i < rowCount; i++) {
+			final String fingerprint = in.readUTF();
+			data.put(fingerprint, TrainingSamples.read(in, featureCount, compressed));
+		}
+		return data;
+	}
+}
@@ -0,0 +1,309 @@
+package de.csbd.segmentation.node.segmenter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+/**
+ * Feature vectors of labeled pixels, stored column by column in primitive
+ * arrays. Each sample consists of one float per feature and the index of its
+ * class.
+ */
+final class TrainingSamples {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final float[][] columns;
+
+	private int[] labels;
+
+	private int size = 0;
+
+	TrainingSamples(final int featureCount) {
+		this.columns = new float[featureCount][INITIAL_CAPACITY];
+		this.labels = new int[INITIAL_CAPACITY];
+	}
+
+	private TrainingSamples(final float[][] columns, final int[] labels, final int size) {
+		this.columns = columns;
+		this.labels = labels;
+		this.size = size;
+	}
+
+	int featureCount() {
+		return columns.length;
+	}
+
+	int size() {
+		return size;
+	}
+
+	float get(final int sample, final int feature) {
+		return columns[feature][sample];
+	}
+
+	int label(final int sample) {
+		return labels[sample];
+	}
+
+	void set(final int sample, final int feature, final float value) {
+		columns[feature][sample] = value;
+	}
+
+	void add(final float[] featureVector, final int label) {
+		ensureCapacity(size + 1);
+		for (int f = 0; f < columns.length; f++)
+			columns[f][size] = featureVector[f];
+		labels[size] = label;
+		size++;
+	}
+
+	/**
+	 * Appends a sample of the other set.
+	 */
+	void add(final TrainingSamples other, final int sample) {
+		ensureCapacity(size + 1);
+		set(size++, other, sample);
+	}
+
+	/**
+	 * Overwrites a sample by a sample of the other set.
+	 */
+	void set(final int sample, final TrainingSamples other, final int otherSample) {
+		for (int f = 0; f < columns.length; f++)
+			columns[f][sample] = other.columns[f][otherSample];
+		labels[sample] = other.labels[otherSample];
+	}
+
+	/**
+	 * Drops the samples from the given index on and frees their memory.
+	 */
+	void truncate(final int newSize) {
+		for (int f = 0; f < columns.length; f++)
+			columns[f] = Arrays.copyOf(columns[f], newSize);
+		labels = Arrays.copyOf(labels, newSize);
+		size = newSize;
+	}
+
+	/**
+	 * The samples with each label replaced by the entry of the mapping at its
+	 * index. The columns are shared, not copied, so neither set may be
+	 * extended afterwards.
+	 */
+	TrainingSamples relabeled(final int[] mapping) {
+		final int[] relabeled = new int[size];
+		for (int i = 0; i < size; i++)
+			relabeled[i] = mapping[labels[i]];
+		return new TrainingSamples(columns, relabeled, size);
+	}
+
+	/**
+	 * Appends all samples of the other set, in their order.
+	 */
+	void addAll(final TrainingSamples other) {
+		if (other.featureCount() != featureCount())
+			throw new IllegalArgumentException("Training samples have different numbers of features.");
+		ensureCapacity(size + other.size);
+		for (int f = 0; f < columns.length; f++)
+			System.arraycopy(other.columns[f], 0, columns[f], size, other.size);
+		System.arraycopy(other.labels, 0, labels, size, other.size);
+		size += other.size;
+	}
+
+	/**
+	 * The samples with only the given features, in this order. The columns
+	 * are shared, not copied, so neither set may be extended afterwards.
+	 */
+	TrainingSamples features(final int[] features) {
+		final float[][] selected = new float[features.length][];
+		for (int i = 0; i < features.length; i++)
+			selected[i] = columns[features[i]];
+		return new TrainingSamples(selected, labels, size);
+	}
+
+	/**
+	 * Copies the samples with the given indices, in this order.
+	 */
+	TrainingSamples subset(final int[] indices, final int count) {
+		final TrainingSamples subset = new TrainingSamples(columns.length);
+		subset.ensureCapacity(count);
+		for (int f = 0; f < columns.length; f++) {
+			final float[] column = columns[f];
+			final float[] subsetColumn = subset.columns[f];
+			for (int i = 0; i < count; i++)
+				subsetColumn[i] = column[indices[i]];
+		}
+		for (int i = 0; i < count; i++)
+			subset.labels[i] = labels[indices[i]];
+		subset.size = count;
+		return subset;
+	}
+
+	private void ensureCapacity(final int capacity) {
+		if (capacity <= labels.length)
+			return;
+		final int newCapacity = Math.max(capacity, 2 * labels.length);
+		for (int f = 0; f < columns.length; f++)
+			columns[f] = Arrays.copyOf(columns[f], newCapacity);
+		labels = Arrays.copyOf(labels, newCapacity);
+	}
+
+	/**
+	 * Copies the samples into a Weka data set with the given header, see
+	 * {@link StackClassifier#header}.
+	 */
+	Instances toInstances(final Instances header) {
+		final Instances instances = new Instances(header, size);
+		final int classIndex = header.classIndex();
+		for (int i = 0; i < size; i++) {
+			final double[] values = new double[columns.length + 1];
+			for (int f = 0; f < columns.length; f++)
+				values[f] = columns[f][i];
+			values[classIndex] = labels[i];
+			instances.add(new DenseInstance(1.0, values));
+		}
+		return instances;
+	}
+
+	/**
+	 * Writes the number of samples, the labels, and then the values column by
+	 * column. The labels are written with as few bytes as the largest label
+	 * needs. If compressed, each column is split into the four byte planes of
+	 * its floats before it is deflated, because the sign and exponent bytes of
+	 * a feature hardly vary and compress well once they are grouped.
+	 */
+	void write(final DataOutput out, final boolean compress) throws IOException {
+		out.writeInt(size);
+		final int labelBytes = labelBytes();
+		out.writeByte(labelBytes);
+		final ByteBuffer labelBuffer = ByteBuffer.allocate(size * labelBytes);
+		for (int i = 0; i < size; i++)
+			if (labelBytes == 1)
+				labelBuffer.put((byte) labels[i]);
+			else if (labelBytes == 2)
+				labelBuffer.putShort((short) labels[i]);
+			else
+				labelBuffer.putInt(labels[i]);
+		out.write(labelBuffer.array());
+		final ByteBuffer column = ByteBuffer.allocate(size * Float.BYTES);
+		final Deflater deflater = compress ? new Deflater() : null;
+		try {
+			for (final float[] values : columns) {
+				column.clear();
+				column.asFloatBuffer().put(values, 0, size);
+				if (compress) {
+					final byte[] deflated = deflate(deflater, shuffle(column.array(), size));
+					out.writeInt(deflated.length);
+					out.write(deflated);
+				} else
+					out.write(column.array());
+			}
+		} finally {
+			if (deflater != null)
+				deflater.end();
+		}
+	}
+
+	static TrainingSamples read(final DataInput in, final int featureCount, final boolean compressed)
+			throws IOException {
+		final TrainingSamples samples = new TrainingSamples(featureCount);
+		final int size = in.readInt();
+		samples.ensureCapacity(size);
+		final int labelBytes = in.readByte();
+		final byte[] labelArray = new byte[size * labelBytes];
+		in.readFully(labelArray);
+		final ByteBuffer labelBuffer = ByteBuffer.wrap(labelArray);
+		for (int i = 0; i < size; i++)
+			if (labelBytes == 1)
+				samples.labels[i] = labelBuffer.get() & 0xff;
+			else if (labelBytes == 2)
+				samples.labels[i] = labelBuffer.getShort() & 0xffff;
+			else
+				samples.labels[i] = labelBuffer.getInt();
+		final byte[] column = new byte[size * Float.BYTES];
+		final Inflater inflater = compressed ? new Inflater() : null;
+		try {
+			for (final float[] values : samples.columns) {
+				if (compressed) {
+					final byte[] deflated = new byte[in.readInt()];
+					in.readFully(deflated);
+					unshuffle(inflate(inflater, deflated, size * Float.BYTES), column, size);
+				} else
+					in.readFully(column);
+				ByteBuffer.wrap(column).asFloatBuffer().get(values, 0, size);
+			}
+		} finally {
+			if (inflater != null)
+				inflater.end();
+		}
+		samples.size = size;
+		return samples;
+	}
+
+	private int labelBytes() {
+		int max = 0;
+		for (int i = 0; i < size; i++)
+			max = Math.max(max, labels[i]);
+		return max <= 0xff ? 1 : max <= 0xffff ? 2 : 4;
+	}
+
+	/**
+	 * Reorders the bytes of the floats such that the first bytes of all floats
+	 * come first, then all second bytes and so on.
+	 */
+	private static byte[] shuffle(final byte[] floats, final int count) {
+		final byte[] planes = new byte[count * Float.BYTES];
+		for (int i = 0; i < count; i++)
+			for (int b = 0; b < Float.BYTES; b++)
+				planes[b * count + i] = floats[i * Float.BYTES + b];
+		return planes;
+	}
+
+	private static void unshuffle(final byte[] planes, final byte[] floats, final int count) {
+		for (int i = 0; i < count; i++)
+			for (int b = 0; b < Float.BYTES; b++)
+				floats[i * Float.BYTES + b] = planes[b * count + i];
+	}
+
+	static byte[] deflate(final Deflater deflater, final byte[] data) {
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+		byte[] buffer = new byte[Math.max(64, data.length / 4)];
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == buffer.length)
+				buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+			length += deflater.deflate(buffer, length, buffer.length - length);
+		}
+		return Arrays.copyOf(buffer, length);
+	}
+
+	static byte[] inflate(final Inflater inflater, final byte[] data, final int length) throws IOException {
+		inflater.reset();
+		inflater.setInput(data);
+		final byte[] result = new byte[length];
+		try {
+			int offset = 0;
+			while (offset < length && !inflater.finished()) {
+				final int n = inflater.inflate(result, offset, length - offset);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				offset += n;
+			}
+			if (offset != length)
+				throw new IOException("Compressed data is truncated.");
+		} catch (final DataFormatException e) {
+			throw new IOException("Compressed data is corrupt.", e);
+		}
+		return result;
+	}
+}
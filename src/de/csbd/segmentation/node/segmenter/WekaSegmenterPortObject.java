@@ -1,7 +1,19 @@
 package de.csbd.segmentation.node.segmenter;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.List;
+import java.io.InputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.ZipEntry;
 
 import javax.swing.JComponent;
@@ -25,12 +37,36 @@ public class WekaSegmenterPortObject extends AbstractPortObject {
 
     public static final PortType TYPE = PortTypeRegistry.getInstance().getPortType(WekaSegmenterPortObject.class);
 
+    public static final PortType TYPE_OPTIONAL =
+        PortTypeRegistry.getInstance().getPortType(WekaSegmenterPortObject.class, true);
+
+    private static final String CLASSIFIER_ENTRY = "Classifier";
+
+    private static final String TRAINING_DATA_ENTRY = "TrainingData";
+
+    private static final String FOREST_ENTRY = "Forest";
+
     private static final String SUMMARY = "Trainable Segmentation Model";
 
     private Classifier model;
 
     private WekaSegmenterPortObjectSpec spec;
 
+    private TrainingData trainingData;
+
+    private boolean compress = false;
+
+    /**
+     * The entries read by {@link #load} are copied to temporary files and only
+     * decoded on first access, see {@link #getModel} and
+     * {@link #getTrainingData}. Most consumers never access the training
+     * data, so the files are deleted once they are decoded or, at the latest,
+     * once this port object is garbage collected, see {@link TempFiles}.
+     */
+    private TempFiles files;
+
+    private String modelEntry;
+
     /** Framework constructor. */
     public WekaSegmenterPortObject() {
     }
@@ -43,14 +79,66 @@ public class WekaSegmenterPortObject extends AbstractPortObject {
      * @param spec the specs corresponding to this object
      */
     public WekaSegmenterPortObject(final Classifier model, final WekaSegmenterPortObjectSpec spec) {
+        this(model, null, spec);
+    }
+
+    /**
+     * @param trainingData the samples the model was trained with, may be null
+     */
+    public WekaSegmenterPortObject(final Classifier model, final TrainingData trainingData,
+        final WekaSegmenterPortObjectSpec spec) {
+        this(model, trainingData, false, spec);
+    }
+
+    /**
+     * @param compress whether the trees of a random forest are deflated when
+     *            saved, see {@link ClassifierFormat}
+     */
+    public WekaSegmenterPortObject(final Classifier model, final TrainingData trainingData, final boolean compress,
+        final WekaSegmenterPortObjectSpec spec) {
         this.spec = spec;
         this.model = model;
+        this.trainingData = trainingData;
+        this.compress = compress;
     }
 
+    /**
+     * The training data is written before the classifier, because
+     * {@link Classifier#store} and {@link Classifier#load} may close the stream.
+     * Random forests are written in the {@link ClassifierFormat}, other
+     * classifiers with {@link Classifier#store}. Entries that were loaded but
+     * not decoded yet are copied as they are.
+     */
     @Override
-    protected void save(final PortObjectZipOutputStream out, final ExecutionMonitor exec)
+    protected synchronized void save(final PortObjectZipOutputStream out, final ExecutionMonitor exec)
         throws IOException, CanceledExecutionException {
-    	out.putNextEntry(new ZipEntry("Classifier"));
+        if (trainingData != null) {
+            out.putNextEntry(new ZipEntry(TRAINING_DATA_ENTRY));
+            final DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out));
+            trainingData.write(dataOut);
+            dataOut.flush();
+            out.closeEntry();
+        } else if (files != null && files.trainingData != null) {
+            out.putNextEntry(new ZipEntry(TRAINING_DATA_ENTRY));
+            Files.copy(files.trainingData.toPath(), out);
+            out.closeEntry();
+        }
+        if (model == null) {
+            out.putNextEntry(new ZipEntry(modelEntry));
+            Files.copy(files.model.toPath(), out);
+            out.closeEntry();
+            return;
+        }
+        final FlatForest forest = ClassifierFormat.forest(model);
+        if (forest != null) {
+            out.putNextEntry(new ZipEntry(FOREST_ENTRY));
+            final DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out));
+            ClassifierFormat.write(dataOut, model, forest, compress);
+            dataOut.flush();
+            out.closeEntry();
+            return;
+        }
+    	out.putNextEntry(new ZipEntry(CLASSIFIER_ENTRY));
         model.store(out);
     }
 
@@ -59,8 +147,25 @@ public class WekaSegmenterPortObject extends AbstractPortObject {
         throws IOException, CanceledExecutionException {
 
         this.spec = (WekaSegmenterPortObjectSpec)spec;
+        this.files = new TempFiles(this);
         ZipEntry zipEntry = in.getNextEntry();
-        this.model = Classifier.load(KNIPGateway.ops(), in);
+        if (TRAINING_DATA_ENTRY.equals(zipEntry.getName())) {
+            files.trainingData = copyToTempFile(in);
+            zipEntry = in.getNextEntry();
+        }
+        this.modelEntry = zipEntry.getName();
+        files.model = copyToTempFile(in);
+    }
+
+    private static File copyToTempFile(final InputStream in) throws IOException {
+        final File file = File.createTempFile("segmenter-model", ".bin");
+        try {
+            Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException e) {
+            file.delete();
+            throw e;
+        }
+        return file;
     }
 
     @Override
@@ -73,12 +178,107 @@ public class WekaSegmenterPortObject extends AbstractPortObject {
         return spec;
     }
 
-    public Classifier getModel() {
+    /**
+     * Decodes the model on the first call after {@link #load}. A model in the
+     * {@link ClassifierFormat} is memory-mapped, so the trees of an
+     * uncompressed forest stay in the file and are shared by all nodes that
+     * use this port object.
+     */
+    public synchronized Classifier getModel() {
+        if (model == null) {
+            try {
+                if (FOREST_ENTRY.equals(modelEntry))
+                    model = ClassifierFormat.map(files.model, KNIPGateway.ops());
+                else
+                    try (InputStream in = new BufferedInputStream(new FileInputStream(files.model))) {
+                        model = Classifier.load(KNIPGateway.ops(), in);
+                    }
+            } catch (final IOException e) {
+                throw new IllegalStateException("Could not read the model.", e);
+            }
+            files.deleteModel();
+        }
         return model;
     }
 
+    /**
+     * @return the samples the model was trained with, or null if they were not
+     *         stored with the model
+     */
+    public synchronized TrainingData getTrainingData() {
+        if (trainingData == null && files != null && files.trainingData != null) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(files.trainingData)))) {
+                trainingData = TrainingData.read(in);
+            } catch (final IOException e) {
+                throw new IllegalStateException("Could not read the training samples.", e);
+            }
+            files.deleteTrainingData();
+        }
+        return trainingData;
+    }
+
     @Override
     public JComponent[] getViews() {
         return new JComponent[]{};
     }
+
+    /**
+     * The temporary files of the entries of a loaded port object. A daemon
+     * thread deletes the files of the entries that were never decoded once
+     * the port object is garbage collected. The reference does not keep the
+     * port object reachable.
+     */
+    private static final class TempFiles extends PhantomReference<WekaSegmenterPortObject> {
+
+        private static final ReferenceQueue<WekaSegmenterPortObject> COLLECTED = new ReferenceQueue<>();
+
+        /** Keeps the references reachable until their files are deleted. */
+        private static final Set<TempFiles> PENDING = ConcurrentHashMap.newKeySet();
+
+        static {
+            final Thread cleaner = new Thread(TempFiles::deleteCollected, "Segmenter model cleaner");
+            cleaner.setDaemon(true);
+            cleaner.start();
+        }
+
+        private volatile File trainingData;
+
+        private volatile File model;
+
+        private TempFiles(final WekaSegmenterPortObject owner) {
+            super(owner, COLLECTED);
+            PENDING.add(this);
+        }
+
+        private static void deleteCollected() {
+            try {
+                while (true) {
+                    final TempFiles files = (TempFiles)COLLECTED.remove();
+                    files.deleteTrainingData();
+                    files.deleteModel();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private synchronized void deleteTrainingData() {
+            if (trainingData != null)
+                trainingData.delete();
+            trainingData = null;
+            done();
+        }
+
+        private synchronized void deleteModel() {
+            if (model != null)
+                model.delete();
+            model = null;
+            done();
+        }
+
+        private void done() {
+            if (trainingData == null && model == null)
+                PENDING.remove(this);
+        }
+    }
 }